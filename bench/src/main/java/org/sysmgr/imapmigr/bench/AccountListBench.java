@@ -0,0 +1,48 @@
+package org.sysmgr.imapmigr.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sysmgr.imapmigr.AccountListLine;
+
+/**
+ * Parsing account list lines, with and without a trailing comment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountListBench
+{
+  private static final int LINES = 1024;
+
+  private String[] lines;
+  private int next = 0;
+
+  @Setup
+  public void setup()
+  {
+    lines = new String[LINES];
+    for (int i = 0; i < LINES; i++) {
+      lines[i] = "user" + i + " | src" + i + "@old.example.com | dst" + i
+        + "@new.example.com" + (i % 4 == 0 ? "  # moved " + i : "");
+    }
+  }
+
+  @Benchmark
+  public AccountListLine parse() throws AccountListLine.EmptyLine
+  {
+    next = (next + 1) & (LINES - 1);
+    return new AccountListLine(lines[next]);
+  }
+}
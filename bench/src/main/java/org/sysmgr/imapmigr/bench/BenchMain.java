@@ -0,0 +1,23 @@
+package org.sysmgr.imapmigr.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH's own main, but always with the GC profiler so that every result comes
+ * with its allocation rate (gc.alloc.rate.norm is bytes per operation).
+ */
+public class BenchMain
+{
+  public static void main(String[] argv) throws Exception
+  {
+    Options opts = new OptionsBuilder()
+      .parent(new CommandLineOptions(argv))
+      .addProfiler(GCProfiler.class)
+      .build();
+    new Runner(opts).run();
+  }
+}
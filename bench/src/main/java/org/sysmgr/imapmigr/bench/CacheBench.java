@@ -0,0 +1,84 @@
+package org.sysmgr.imapmigr.bench;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sysmgr.imapmigr.FingerprintSet;
+import org.sysmgr.imapmigr.Utils;
+
+/**
+ * Membership checks against a user's MTS cache, as made once per source
+ * message, half of them hits.  The HashSet of hex Strings is what the cache
+ * used to be, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class CacheBench
+{
+  private static final int PROBES = 4096;
+
+  @Param({"10000", "100000", "1000000"})
+  public int entries;
+
+  private FingerprintSet set;
+  private Set<String> hexSet;
+  private byte[][] probes;
+  private String[] hexProbes;
+  private int next = 0;
+
+  @Setup
+  public void setup()
+  {
+    Random r = new Random(42);
+    set = new FingerprintSet();
+    hexSet = new HashSet<String>();
+    byte[][] present = new byte[entries][];
+    for (int i = 0; i < entries; i++) {
+      present[i] = new byte[16];
+      r.nextBytes(present[i]);
+      set.add(present[i]);
+      hexSet.add(Utils.convertToHex(present[i]));
+    }
+    probes = new byte[PROBES][];
+    hexProbes = new String[PROBES];
+    for (int i = 0; i < PROBES; i++) {
+      if (i % 2 == 0) {
+        probes[i] = present[r.nextInt(entries)];
+      } else {
+        probes[i] = new byte[16];
+        r.nextBytes(probes[i]);
+      }
+      hexProbes[i] = Utils.convertToHex(probes[i]);
+    }
+  }
+
+  @Benchmark
+  public boolean fingerprintSet()
+  {
+    next = (next + 1) & (PROBES - 1);
+    return set.contains(probes[next]);
+  }
+
+  @Benchmark
+  public boolean hexHashSet()
+  {
+    next = (next + 1) & (PROBES - 1);
+    return hexSet.contains(hexProbes[next]);
+  }
+}
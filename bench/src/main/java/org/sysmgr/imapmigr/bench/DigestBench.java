@@ -0,0 +1,63 @@
+package org.sysmgr.imapmigr.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sysmgr.imapmigr.Fingerprinter;
+import org.sysmgr.imapmigr.Utils;
+
+/**
+ * Utils.getMD5() and convertToHex() against the Fingerprinter they now sit
+ * on, for a fingerprint-sized key and a longer one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigestBench
+{
+  @Param({"80", "1024"})
+  public int length;
+
+  private String input;
+  private byte[] digest;
+
+  @Setup
+  public void setup()
+  {
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < length)
+      sb.append("<20110314.1234@mail.example.com>|48213|1300000000000|inbox|");
+    input = sb.substring(0, length);
+    digest = Fingerprinter.get().reset().append(input).digest().clone();
+  }
+
+  @Benchmark
+  public String md5Hex()
+  {
+    return Utils.getMD5(input);
+  }
+
+  @Benchmark
+  public byte[] md5Raw()
+  {
+    return Fingerprinter.get().reset().append(input).digest();
+  }
+
+  @Benchmark
+  public String toHex()
+  {
+    return Utils.convertToHex(digest);
+  }
+}
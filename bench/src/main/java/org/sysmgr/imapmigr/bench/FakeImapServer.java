@@ -0,0 +1,1221 @@
+package org.sysmgr.imapmigr.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.sysmgr.imapmigr.UidSet;
+
+/**
+ * Just enough of an IMAP4rev1 server, in memory, for IMAPSync to run against:
+ * LOGIN, PROXYAUTH, LIST, STATUS, CREATE, SELECT/EXAMINE, FETCH, STORE,
+ * APPEND (with MULTIAPPEND, LITERAL+ and UIDPLUS) and their UID forms, and
+ * CONDSTORE's HIGHESTMODSEQ and CHANGEDSINCE.  Every
+ * response can be delayed, the connection's bandwidth capped, and FETCH,
+ * STATUS and APPEND made to fail, or drop the connection, at random, to see
+ * how a sync behaves against a slow or flaky server.
+ *
+ * Accounts and mail are set up through addAccount()/addMessage().  Messages
+ * are only ever appended, never expunged, so sequence numbers are stable.
+ */
+public class FakeImapServer implements Closeable
+{
+  public static class Settings
+  {
+    /** Added before every tagged response. */
+    public long latencyMillis = 0;
+    /** Per connection and direction, 0 for no cap. */
+    public long bytesPerSecond = 0;
+    /** Chance of a FETCH, STATUS or APPEND failing with NO. */
+    public double errorRate = 0;
+    /** Chance of a FETCH, STATUS or APPEND dropping the connection instead. */
+    public double dropRate = 0;
+    public boolean literalPlus = true;
+    public boolean multiAppend = true;
+    public boolean condStore = true;
+    public String adminUser = "admin";
+    public String adminPassword = "admin";
+  }
+
+  public static class StoredMessage
+  {
+    public long uid;
+    public long modSeq;
+    public Set<String> flags = new LinkedHashSet<String>();
+    public Date internalDate;
+    public byte[] raw;
+    int headerLength;
+    String date;
+    String subject;
+    String from;
+    String to;
+    String messageId;
+  }
+
+  public static class Mailbox
+  {
+    public String name;
+    public long uidValidity;
+    public long uidNext = 1;
+    public long highestModSeq = 1;
+    public List<StoredMessage> messages = new ArrayList<StoredMessage>();
+
+    public synchronized int size()
+    {
+      return messages.size();
+    }
+
+    public synchronized long bytes()
+    {
+      long b = 0;
+      for (StoredMessage m : messages)
+        b += m.raw.length;
+      return b;
+    }
+  }
+
+  public static class Account
+  {
+    public String password;
+    public Map<String, Mailbox> mailboxes = new TreeMap<String, Mailbox>();
+  }
+
+  private static final char SEP = '/';
+  private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)(\\+?)\\}$");
+  private static final Pattern SECTION = Pattern.compile(
+    "(BODY(?:\\.PEEK)?)\\[([^\\]]*)\\](?:<(\\d+)(?:\\.(\\d+))?>)?");
+
+  private final Settings settings;
+  private final Map<String, Account> accounts
+    = new ConcurrentHashMap<String, Account>();
+  private final AtomicLong nextValidity = new AtomicLong(
+    System.currentTimeMillis() / 1000);
+  private final Random random = new Random();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final List<Socket> connections = new LinkedList<Socket>();
+  private ServerSocket server;
+  private Thread acceptor;
+
+  public FakeImapServer(Settings settings)
+  {
+    this.settings = settings;
+  }
+
+  public synchronized Account addAccount(String user, String password)
+  {
+    Account a = new Account();
+    a.password = password;
+    accounts.put(user, a);
+    addMailbox(user, "INBOX");
+    return a;
+  }
+
+  public Account getAccount(String user)
+  {
+    return accounts.get(user);
+  }
+
+  public Mailbox addMailbox(String user, String name)
+  {
+    Account a = accounts.get(user);
+    synchronized (a) {
+      Mailbox mb = a.mailboxes.get(name);
+      if (mb == null) {
+        mb = new Mailbox();
+        mb.name = name;
+        mb.uidValidity = nextValidity.incrementAndGet();
+        a.mailboxes.put(name, mb);
+      }
+      return mb;
+    }
+  }
+
+  public StoredMessage addMessage(Mailbox mb, byte[] raw, Set<String> flags,
+    Date internalDate)
+  {
+    StoredMessage m = new StoredMessage();
+    m.raw = raw;
+    m.internalDate = internalDate;
+    if (flags != null)
+      m.flags.addAll(flags);
+    parseHeaders(m);
+    synchronized (mb) {
+      m.uid = mb.uidNext++;
+      m.modSeq = ++mb.highestModSeq;
+      mb.messages.add(m);
+    }
+    return m;
+  }
+
+  /**
+   * Replace a message's flags, as another client's STORE would.
+   */
+  public void setFlags(Mailbox mb, StoredMessage m, Set<String> flags)
+  {
+    synchronized (mb) {
+      m.flags.clear();
+      m.flags.addAll(flags);
+      m.modSeq = ++mb.highestModSeq;
+    }
+  }
+
+  /**
+   * A plain text message of about the given size.
+   */
+  public static byte[] makeMessage(int seed, int size)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Date: Mon, 14 Mar 2011 12:").append(10 + seed % 50)
+      .append(":00 +0000\r\n");
+    sb.append("From: User ").append(seed % 97).append(" <user")
+      .append(seed % 97).append("@example.com>\r\n");
+    sb.append("To: someone@example.com\r\n");
+    sb.append("Subject: Synthetic message ").append(seed).append("\r\n");
+    sb.append("Message-ID: <").append(seed).append('.')
+      .append(Integer.toHexString(seed * 0x9e3779b9))
+      .append("@bench.example.com>\r\n");
+    sb.append("MIME-Version: 1.0\r\n");
+    sb.append("Content-Type: text/plain; charset=us-ascii\r\n\r\n");
+    Random r = new Random(seed);
+    while (sb.length() < size) {
+      for (int i = 0; i < 72; i++)
+        sb.append((char) ('a' + r.nextInt(26)));
+      sb.append("\r\n");
+    }
+    return sb.toString().getBytes();
+  }
+
+  public void start() throws IOException
+  {
+    server = new ServerSocket(0, 200, InetAddress.getByName("127.0.0.1"));
+    acceptor = new Thread(new Runnable() {
+      public void run()
+      {
+        accept();
+      }
+    });
+    acceptor.setName("FakeImap-" + server.getLocalPort());
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort()
+  {
+    return server.getLocalPort();
+  }
+
+  public long getBytesIn()
+  {
+    return bytesIn.get();
+  }
+
+  public long getBytesOut()
+  {
+    return bytesOut.get();
+  }
+
+  public void close()
+  {
+    try {
+      server.close();
+    } catch (IOException ex) {
+    }
+    synchronized (connections) {
+      for (Socket s : connections) {
+        try {
+          s.close();
+        } catch (IOException ex) {
+        }
+      }
+      connections.clear();
+    }
+  }
+
+  private void accept()
+  {
+    for (;;) {
+      final Socket s;
+      try {
+        s = server.accept();
+      } catch (IOException ex) {
+        return;
+      }
+      synchronized (connections) {
+        connections.add(s);
+      }
+      Thread t = new Thread(new Runnable() {
+        public void run()
+        {
+          try {
+            new Connection(s).serve();
+          } catch (IOException ex) {
+            // client went away
+          } finally {
+            try {
+              s.close();
+            } catch (IOException ex) {
+            }
+            synchronized (connections) {
+              connections.remove(s);
+            }
+          }
+        }
+      });
+      t.setName("FakeImap-" + getPort() + "-conn");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  private boolean injectFailure()
+  {
+    if (settings.errorRate <= 0)
+      return false;
+    synchronized (random) {
+      return random.nextDouble() < settings.errorRate;
+    }
+  }
+
+  private boolean injectDrop(String name)
+  {
+    if (settings.dropRate <= 0 || !(name.equals("FETCH")
+        || name.equals("UID") || name.equals("STATUS")
+        || name.equals("APPEND")))
+      return false;
+    synchronized (random) {
+      return random.nextDouble() < settings.dropRate;
+    }
+  }
+
+  private static void parseHeaders(StoredMessage m)
+  {
+    String raw;
+    try {
+      raw = new String(m.raw, "ISO-8859-1");
+    } catch (java.io.UnsupportedEncodingException ex) {
+      throw new RuntimeException(ex);
+    }
+    int end = raw.indexOf("\r\n\r\n");
+    m.headerLength = end < 0 ? m.raw.length : end + 4;
+    String head = raw.substring(0, end < 0 ? raw.length() : end)
+      .replaceAll("\r\n[ \t]+", " ");
+    for (String line : head.split("\r\n")) {
+      int colon = line.indexOf(':');
+      if (colon < 0)
+        continue;
+      String name = line.substring(0, colon).trim();
+      String value = line.substring(colon + 1).trim();
+      if (name.equalsIgnoreCase("Date"))
+        m.date = value;
+      else if (name.equalsIgnoreCase("Subject"))
+        m.subject = value;
+      else if (name.equalsIgnoreCase("From"))
+        m.from = value;
+      else if (name.equalsIgnoreCase("To"))
+        m.to = value;
+      else if (name.equalsIgnoreCase("Message-ID"))
+        m.messageId = value;
+    }
+    if (m.internalDate == null)
+      m.internalDate = new Date();
+  }
+
+  /**
+   * Caps the bytes per second through one direction of a connection.
+   */
+  private static class Throttle
+  {
+    private long rate;
+    private long start = System.nanoTime();
+    private long bytes = 0;
+
+    Throttle(long rate)
+    {
+      this.rate = rate;
+    }
+
+    void consume(int n)
+    {
+      if (rate <= 0)
+        return;
+      bytes += n;
+      long due = start + (long) (bytes * 1e9 / rate);
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException ex) {
+        }
+      }
+    }
+  }
+
+  private class Connection
+  {
+    private InputStream in;
+    private OutputStream out;
+    private Throttle inThrottle = new Throttle(settings.bytesPerSecond);
+    private Throttle outThrottle = new Throttle(settings.bytesPerSecond);
+    private boolean admin = false;
+    private Account account = null;
+    private Mailbox selected = null;
+    private boolean readOnly = true;
+    /** Whether a CHANGEDSINCE has turned MODSEQ on in FETCH responses. */
+    private boolean condStoreEnabled = false;
+
+    Connection(Socket s) throws IOException
+    {
+      s.setTcpNoDelay(true);
+      in = new BufferedInputStream(s.getInputStream(), 65536);
+      out = new BufferedOutputStream(s.getOutputStream(), 65536);
+    }
+
+    void serve() throws IOException
+    {
+      send("* OK [CAPABILITY " + capabilities() + "] Fake IMAP ready\r\n");
+      flush();
+      for (;;) {
+        List<Object> cmd = readCommand();
+        if (cmd == null)
+          return;
+        if (cmd.size() < 2 || !(cmd.get(0) instanceof String)
+            || !(cmd.get(1) instanceof String)) {
+          send("* BAD Unparseable command\r\n");
+          flush();
+          continue;
+        }
+        String tag = (String) cmd.get(0);
+        String name = ((String) cmd.get(1)).toUpperCase(Locale.US);
+        List<Object> args = cmd.subList(2, cmd.size());
+        if (injectDrop(name))
+          return;
+        String result;
+        try {
+          result = dispatch(tag, name, args);
+        } catch (RuntimeException ex) {
+          result = "BAD " + ex.getMessage();
+        }
+        if (settings.latencyMillis > 0 && !name.equals("LOGOUT")) {
+          flush();
+          try {
+            Thread.sleep(settings.latencyMillis);
+          } catch (InterruptedException ex) {
+          }
+        }
+        send(tag + " " + result + "\r\n");
+        flush();
+        if (name.equals("LOGOUT"))
+          return;
+      }
+    }
+
+    private String capabilities()
+    {
+      return "IMAP4rev1 UIDPLUS"
+        + (settings.literalPlus ? " LITERAL+" : "")
+        + (settings.multiAppend ? " MULTIAPPEND" : "")
+        + (settings.condStore ? " CONDSTORE" : "");
+    }
+
+    private String dispatch(String tag, String name, List<Object> args)
+      throws IOException
+    {
+      if (name.equals("CAPABILITY")) {
+        send("* CAPABILITY " + capabilities() + "\r\n");
+        return "OK CAPABILITY completed";
+      }
+      if (name.equals("NOOP") || name.equals("CHECK"))
+        return "OK " + name + " completed";
+      if (name.equals("LOGOUT")) {
+        send("* BYE Fake IMAP logging out\r\n");
+        return "OK LOGOUT completed";
+      }
+      if (name.equals("LOGIN"))
+        return login(str(args, 0), str(args, 1));
+      if (name.equals("AUTHENTICATE"))
+        return "NO Use LOGIN";
+      if (name.equals("PROXYAUTH")) {
+        if (!admin)
+          return "NO Not an administrator";
+        Account a = accounts.get(str(args, 0));
+        if (a == null)
+          return "NO No such user";
+        account = a;
+        selected = null;
+        return "OK PROXYAUTH completed";
+      }
+      if (account == null)
+        return "NO Not authenticated";
+
+      if (name.equals("LIST") || name.equals("LSUB"))
+        return list(name, str(args, 0), str(args, 1));
+      if (name.equals("STATUS")) {
+        if (injectFailure())
+          return "NO [UNAVAILABLE] Injected STATUS failure";
+        return status(str(args, 0), (List<?>) args.get(1));
+      }
+      if (name.equals("CREATE")) {
+        String mbox = trimSeparator(str(args, 0));
+        if (findMailbox(mbox) != null)
+          return "NO [ALREADYEXISTS] Mailbox exists";
+        synchronized (account) {
+          Mailbox mb = new Mailbox();
+          mb.name = mbox;
+          mb.uidValidity = nextValidity.incrementAndGet();
+          account.mailboxes.put(mbox, mb);
+        }
+        return "OK CREATE completed";
+      }
+      if (name.equals("DELETE")) {
+        synchronized (account) {
+          account.mailboxes.remove(str(args, 0));
+        }
+        return "OK DELETE completed";
+      }
+      if (name.equals("SUBSCRIBE") || name.equals("UNSUBSCRIBE"))
+        return "OK " + name + " completed";
+      if (name.equals("NAMESPACE")) {
+        send("* NAMESPACE ((\"\" \"" + SEP + "\")) NIL NIL\r\n");
+        return "OK NAMESPACE completed";
+      }
+      if (name.equals("SELECT") || name.equals("EXAMINE"))
+        return select(str(args, 0), name.equals("EXAMINE"));
+      if (name.equals("APPEND")) {
+        String mbox = str(args, 0);
+        return append(findMailbox(mbox), args.subList(1, args.size()));
+      }
+
+      if (selected == null)
+        return "NO No mailbox selected";
+      if (name.equals("CLOSE") || name.equals("UNSELECT")) {
+        selected = null;
+        return "OK " + name + " completed";
+      }
+      if (name.equals("EXPUNGE"))
+        return "OK EXPUNGE completed";
+      if (name.equals("FETCH")) {
+        if (injectFailure())
+          return "NO [UNAVAILABLE] Injected FETCH failure";
+        return fetch(str(args, 0), args.get(1),
+          args.size() > 2 ? args.get(2) : null, false);
+      }
+      if (name.equals("STORE"))
+        return store(str(args, 0), str(args, 1), args.get(2), false);
+      if (name.equals("UID")) {
+        String sub = str(args, 0).toUpperCase(Locale.US);
+        if (sub.equals("FETCH")) {
+          if (injectFailure())
+            return "NO [UNAVAILABLE] Injected FETCH failure";
+          return fetch(str(args, 1), args.get(2),
+            args.size() > 3 ? args.get(3) : null, true);
+        }
+        if (sub.equals("STORE"))
+          return store(str(args, 1), str(args, 2), args.get(3), true);
+        return "BAD Unsupported UID command";
+      }
+      return "BAD Unsupported command " + name;
+    }
+
+    private String login(String user, String password)
+    {
+      if (user.equals(settings.adminUser)
+          && password.equals(settings.adminPassword)) {
+        admin = true;
+        // an administrator gets somewhere to be until PROXYAUTH
+        account = new Account();
+        return "OK LOGIN completed";
+      }
+      Account a = accounts.get(user);
+      if (a == null || !a.password.equals(password))
+        return "NO [AUTHENTICATIONFAILED] Bad credentials";
+      account = a;
+      return "OK LOGIN completed";
+    }
+
+    private Mailbox findMailbox(String name)
+    {
+      synchronized (account) {
+        if (name.equalsIgnoreCase("INBOX"))
+          name = "INBOX";
+        return account.mailboxes.get(name);
+      }
+    }
+
+    private String trimSeparator(String name)
+    {
+      while (name.length() > 0 && name.charAt(name.length() - 1) == SEP)
+        name = name.substring(0, name.length() - 1);
+      return name;
+    }
+
+    private String list(String cmd, String ref, String pattern)
+      throws IOException
+    {
+      if (pattern.length() == 0) {
+        send("* " + cmd + " (\\Noselect) \"" + SEP + "\" \"\"\r\n");
+        return "OK " + cmd + " completed";
+      }
+      Pattern p = globToRegex(ref + pattern);
+      // every mailbox, and any parent that only exists implicitly
+      Map<String, Boolean> names = new TreeMap<String, Boolean>();
+      synchronized (account) {
+        for (String n : account.mailboxes.keySet()) {
+          names.put(n, Boolean.TRUE);
+          int i = n.lastIndexOf(SEP);
+          while (i > 0) {
+            String parent = n.substring(0, i);
+            if (!names.containsKey(parent))
+              names.put(parent, account.mailboxes.containsKey(parent));
+            i = parent.lastIndexOf(SEP);
+          }
+        }
+      }
+      for (Map.Entry<String, Boolean> e : names.entrySet()) {
+        String n = e.getKey();
+        if (!p.matcher(n).matches())
+          continue;
+        boolean children = false;
+        for (String other : names.keySet()) {
+          if (other.startsWith(n + SEP)) {
+            children = true;
+            break;
+          }
+        }
+        String attrs = (e.getValue() ? "" : "\\Noselect ")
+          + (children ? "\\HasChildren" : "\\HasNoChildren");
+        send("* " + cmd + " (" + attrs + ") \"" + SEP + "\" ");
+        sendString(n);
+        send("\r\n");
+      }
+      return "OK " + cmd + " completed";
+    }
+
+    private Pattern globToRegex(String glob)
+    {
+      StringBuilder sb = new StringBuilder();
+      for (char c : glob.toCharArray()) {
+        if (c == '*')
+          sb.append(".*");
+        else if (c == '%')
+          sb.append("[^").append(Pattern.quote(String.valueOf(SEP)))
+            .append("]*");
+        else
+          sb.append(Pattern.quote(String.valueOf(c)));
+      }
+      String re = sb.toString();
+      // INBOX is case-insensitive
+      if (glob.regionMatches(true, 0, "INBOX", 0, 5))
+        re = "(?i:" + Pattern.quote(glob.substring(0, 5)) + ")"
+          + globToRegex(glob.substring(5)).pattern();
+      return Pattern.compile(re);
+    }
+
+    private String status(String name, List<?> items) throws IOException
+    {
+      Mailbox mb = findMailbox(name);
+      if (mb == null)
+        return "NO [NONEXISTENT] No such mailbox";
+      StringBuilder sb = new StringBuilder();
+      synchronized (mb) {
+        for (Object o : items) {
+          String item = ((String) o).toUpperCase(Locale.US);
+          long v;
+          if (item.equals("MESSAGES"))
+            v = mb.messages.size();
+          else if (item.equals("UIDNEXT"))
+            v = mb.uidNext;
+          else if (item.equals("UIDVALIDITY"))
+            v = mb.uidValidity;
+          else if (item.equals("RECENT"))
+            v = 0;
+          else if (item.equals("UNSEEN")) {
+            v = 0;
+            for (StoredMessage m : mb.messages) {
+              if (!m.flags.contains("\\Seen"))
+                v++;
+            }
+          } else if (item.equals("SIZE"))
+            v = mb.bytes();
+          else if (item.equals("HIGHESTMODSEQ") && settings.condStore)
+            v = mb.highestModSeq;
+          else
+            continue;
+          sb.append(sb.length() == 0 ? "" : " ").append(item).append(' ')
+            .append(v);
+        }
+      }
+      send("* STATUS ");
+      sendString(mb.name);
+      send(" (" + sb + ")\r\n");
+      return "OK STATUS completed";
+    }
+
+    private String select(String name, boolean examine) throws IOException
+    {
+      selected = null;
+      Mailbox mb = findMailbox(name);
+      if (mb == null)
+        return "NO [NONEXISTENT] No such mailbox";
+      int exists;
+      long uidNext;
+      long highestModSeq;
+      synchronized (mb) {
+        exists = mb.messages.size();
+        uidNext = mb.uidNext;
+        highestModSeq = mb.highestModSeq;
+      }
+      send("* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)\r\n");
+      send("* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Deleted \\Seen"
+        + " \\Draft \\*)] Flags permitted\r\n");
+      send("* " + exists + " EXISTS\r\n");
+      send("* 0 RECENT\r\n");
+      send("* OK [UIDVALIDITY " + mb.uidValidity + "] UIDs valid\r\n");
+      send("* OK [UIDNEXT " + uidNext + "] Predicted next UID\r\n");
+      if (settings.condStore)
+        send("* OK [HIGHESTMODSEQ " + highestModSeq + "] Highest\r\n");
+      selected = mb;
+      readOnly = examine;
+      return "OK [" + (examine ? "READ-ONLY" : "READ-WRITE") + "] "
+        + (examine ? "EXAMINE" : "SELECT") + " completed";
+    }
+
+    private String append(Mailbox mb, List<Object> args) throws IOException
+    {
+      if (mb == null)
+        return "NO [TRYCREATE] No such mailbox";
+      List<StoredMessage> added = new ArrayList<StoredMessage>();
+      Set<String> flags = null;
+      Date date = null;
+      for (Object o : args) {
+        if (o instanceof List) {
+          flags = new LinkedHashSet<String>();
+          for (Object f : (List<?>) o)
+            flags.add((String) f);
+        } else if (o instanceof String) {
+          date = parseInternalDate((String) o);
+        } else if (o instanceof byte[]) {
+          StoredMessage m = new StoredMessage();
+          m.raw = (byte[]) o;
+          m.internalDate = date;
+          if (flags != null)
+            m.flags.addAll(flags);
+          parseHeaders(m);
+          added.add(m);
+          flags = null;
+          date = null;
+        }
+      }
+      if (added.isEmpty())
+        return "BAD No message given";
+      if (injectFailure())
+        return "NO [UNAVAILABLE] Injected APPEND failure";
+      long first;
+      long last;
+      synchronized (mb) {
+        first = mb.uidNext;
+        for (StoredMessage m : added) {
+          m.uid = mb.uidNext++;
+          m.modSeq = ++mb.highestModSeq;
+          mb.messages.add(m);
+        }
+        last = mb.uidNext - 1;
+        if (mb == selected)
+          send("* " + mb.messages.size() + " EXISTS\r\n");
+      }
+      return "OK [APPENDUID " + mb.uidValidity + " "
+        + (first == last ? "" + first : first + ":" + last)
+        + "] APPEND completed";
+    }
+
+    private Date parseInternalDate(String s)
+    {
+      try {
+        SimpleDateFormat f = new SimpleDateFormat("d-MMM-yyyy HH:mm:ss Z",
+          Locale.US);
+        return f.parse(s.trim());
+      } catch (ParseException ex) {
+        throw new RuntimeException("Bad date-time " + s);
+      }
+    }
+
+    /**
+     * Messages a sequence set, or with byUid a UID set, refers to.
+     */
+    private List<Integer> resolve(String set, boolean byUid)
+    {
+      List<Integer> r = new ArrayList<Integer>();
+      synchronized (selected) {
+        int n = selected.messages.size();
+        if (n == 0)
+          return r;
+        long max = byUid ? selected.messages.get(n - 1).uid : n;
+        // sequence numbers are parsed just the same
+        UidSet keys = UidSet.parse(set, max);
+        for (int i = 0; i < n; i++) {
+          if (keys.contains(byUid ? selected.messages.get(i).uid : i + 1))
+            r.add(i);
+        }
+      }
+      return r;
+    }
+
+    /**
+     * @param modifiers "(CHANGEDSINCE n)" as a list, or null.
+     */
+    private String fetch(String set, Object itemSpec, Object modifiers,
+      boolean byUid) throws IOException
+    {
+      long changedSince = -1;
+      if (modifiers instanceof List) {
+        List<?> l = (List<?>) modifiers;
+        if (l.size() != 2 || !"CHANGEDSINCE".equalsIgnoreCase((String) l.get(0))
+            || !settings.condStore)
+          return "BAD Unsupported FETCH modifier";
+        changedSince = Long.parseLong((String) l.get(1));
+        condStoreEnabled = true;
+      }
+      List<String> items = new ArrayList<String>();
+      if (itemSpec instanceof List) {
+        for (Object o : (List<?>) itemSpec)
+          items.add((String) o);
+      } else {
+        String s = ((String) itemSpec).toUpperCase(Locale.US);
+        if (s.equals("ALL")) {
+          items.add("FLAGS");
+          items.add("INTERNALDATE");
+          items.add("RFC822.SIZE");
+          items.add("ENVELOPE");
+        } else if (s.equals("FAST")) {
+          items.add("FLAGS");
+          items.add("INTERNALDATE");
+          items.add("RFC822.SIZE");
+        } else {
+          items.add((String) itemSpec);
+        }
+      }
+      if (byUid && !containsIgnoreCase(items, "UID"))
+        items.add(0, "UID");
+      boolean modSeq = condStoreEnabled && (changedSince >= 0
+        || containsIgnoreCase(items, "FLAGS"));
+
+      for (int i : resolve(set, byUid)) {
+        StoredMessage m;
+        long ms;
+        synchronized (selected) {
+          m = selected.messages.get(i);
+          ms = m.modSeq;
+        }
+        if (ms <= changedSince)
+          continue;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        write(bos, "* " + (i + 1) + " FETCH (");
+        boolean first = true;
+        for (String item : items) {
+          if (!first)
+            write(bos, " ");
+          first = false;
+          fetchItem(bos, m, item);
+          // where it trips up a client that doesn't know it
+          if (modSeq && item.equalsIgnoreCase("UID"))
+            write(bos, " MODSEQ (" + ms + ")");
+        }
+        write(bos, ")\r\n");
+        send(bos.toByteArray());
+      }
+      return "OK FETCH completed";
+    }
+
+    private void fetchItem(ByteArrayOutputStream bos, StoredMessage m,
+      String item) throws IOException
+    {
+      String u = item.toUpperCase(Locale.US);
+      if (u.equals("UID")) {
+        write(bos, "UID " + m.uid);
+      } else if (u.equals("FLAGS")) {
+        write(bos, "FLAGS " + flagList(m));
+      } else if (u.equals("INTERNALDATE")) {
+        SimpleDateFormat f = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z",
+          Locale.US);
+        write(bos, "INTERNALDATE \"" + f.format(m.internalDate) + "\"");
+      } else if (u.equals("RFC822.SIZE")) {
+        write(bos, "RFC822.SIZE " + m.raw.length);
+      } else if (u.equals("ENVELOPE")) {
+        write(bos, "ENVELOPE (");
+        nstring(bos, m.date);
+        write(bos, " ");
+        nstring(bos, m.subject);
+        write(bos, " ");
+        address(bos, m.from);
+        write(bos, " ");
+        address(bos, m.from);
+        write(bos, " ");
+        address(bos, m.from);
+        write(bos, " ");
+        address(bos, m.to);
+        write(bos, " NIL NIL NIL ");
+        nstring(bos, m.messageId);
+        write(bos, ")");
+      } else if (u.equals("BODYSTRUCTURE") || u.equals("BODY")) {
+        write(bos, u + " (\"TEXT\" \"PLAIN\" (\"CHARSET\" \"US-ASCII\") NIL"
+          + " NIL \"7BIT\" " + (m.raw.length - m.headerLength) + " "
+          + lines(m) + ")");
+      } else if (u.equals("RFC822")) {
+        markSeen(m);
+        literal(bos, "RFC822", m.raw, 0, m.raw.length);
+      } else if (u.equals("RFC822.HEADER")) {
+        literal(bos, "RFC822.HEADER", m.raw, 0, m.headerLength);
+      } else if (u.equals("RFC822.TEXT")) {
+        markSeen(m);
+        literal(bos, "RFC822.TEXT", m.raw, m.headerLength,
+          m.raw.length - m.headerLength);
+      } else {
+        Matcher sm = SECTION.matcher(u);
+        if (!sm.matches())
+          throw new RuntimeException("Unsupported FETCH item " + item);
+        if (!sm.group(1).equals("BODY.PEEK"))
+          markSeen(m);
+        String section = sm.group(2);
+        int off;
+        int len;
+        if (section.length() == 0) {
+          off = 0;
+          len = m.raw.length;
+        } else if (section.equals("HEADER")) {
+          off = 0;
+          len = m.headerLength;
+        } else if (section.equals("TEXT") || section.equals("1")) {
+          off = m.headerLength;
+          len = m.raw.length - m.headerLength;
+        } else {
+          throw new RuntimeException("Unsupported section " + section);
+        }
+        String name = "BODY[" + section + "]";
+        if (sm.group(3) != null) {
+          int start = Integer.parseInt(sm.group(3));
+          int count = sm.group(4) == null ? Integer.MAX_VALUE
+            : Integer.parseInt(sm.group(4));
+          start = Math.min(start, len);
+          name += "<" + start + ">";
+          off += start;
+          len = (int) Math.min((long) len - start, count);
+        }
+        literal(bos, name, m.raw, off, len);
+      }
+    }
+
+    private String store(String set, String op, Object flagSpec,
+      boolean byUid) throws IOException
+    {
+      if (readOnly)
+        return "NO Mailbox is read-only";
+      Set<String> flags = new LinkedHashSet<String>();
+      if (flagSpec instanceof List) {
+        for (Object o : (List<?>) flagSpec)
+          flags.add((String) o);
+      } else {
+        flags.add((String) flagSpec);
+      }
+      String u = op.toUpperCase(Locale.US);
+      boolean silent = u.endsWith(".SILENT");
+      for (int i : resolve(set, byUid)) {
+        StoredMessage m;
+        synchronized (selected) {
+          m = selected.messages.get(i);
+          if (u.startsWith("+")) {
+            m.flags.addAll(flags);
+          } else if (u.startsWith("-")) {
+            m.flags.removeAll(flags);
+          } else {
+            m.flags.clear();
+            m.flags.addAll(flags);
+          }
+          m.modSeq = ++selected.highestModSeq;
+        }
+        if (!silent) {
+          send("* " + (i + 1) + " FETCH (" + (byUid ? "UID " + m.uid + " "
+            : "") + "FLAGS " + flagList(m) + ")\r\n");
+        }
+      }
+      return "OK STORE completed";
+    }
+
+    private void markSeen(StoredMessage m)
+    {
+      if (readOnly)
+        return;
+      synchronized (selected) {
+        if (m.flags.add("\\Seen"))
+          m.modSeq = ++selected.highestModSeq;
+      }
+    }
+
+    private String flagList(StoredMessage m)
+    {
+      StringBuilder sb = new StringBuilder("(");
+      synchronized (selected) {
+        for (String f : m.flags) {
+          if (sb.length() > 1)
+            sb.append(' ');
+          sb.append(f);
+        }
+      }
+      return sb.append(')').toString();
+    }
+
+    private int lines(StoredMessage m)
+    {
+      int n = 0;
+      for (int i = m.headerLength; i < m.raw.length; i++) {
+        if (m.raw[i] == '\n')
+          n++;
+      }
+      return n;
+    }
+
+    private void address(ByteArrayOutputStream bos, String addr)
+      throws IOException
+    {
+      if (addr == null) {
+        write(bos, "NIL");
+        return;
+      }
+      String name = null;
+      String email = addr;
+      int lt = addr.indexOf('<');
+      int gt = addr.indexOf('>');
+      if (lt >= 0 && gt > lt) {
+        name = addr.substring(0, lt).trim().replaceAll("^\"|\"$", "");
+        email = addr.substring(lt + 1, gt);
+      }
+      int at = email.indexOf('@');
+      write(bos, "((");
+      nstring(bos, name == null || name.length() == 0 ? null : name);
+      write(bos, " NIL ");
+      nstring(bos, at < 0 ? email : email.substring(0, at));
+      write(bos, " ");
+      nstring(bos, at < 0 ? null : email.substring(at + 1));
+      write(bos, "))");
+    }
+
+    private void nstring(ByteArrayOutputStream bos, String s)
+      throws IOException
+    {
+      if (s == null) {
+        write(bos, "NIL");
+      } else if (s.indexOf('"') >= 0 || s.indexOf('\\') >= 0
+          || s.indexOf('\r') >= 0 || s.indexOf('\n') >= 0) {
+        byte[] b = s.getBytes("ISO-8859-1");
+        write(bos, "{" + b.length + "}\r\n");
+        bos.write(b);
+      } else {
+        write(bos, "\"" + s + "\"");
+      }
+    }
+
+    private void literal(ByteArrayOutputStream bos, String name, byte[] b,
+      int off, int len) throws IOException
+    {
+      write(bos, name + " {" + len + "}\r\n");
+      bos.write(b, off, len);
+    }
+
+    private void write(ByteArrayOutputStream bos, String s) throws IOException
+    {
+      bos.write(s.getBytes("ISO-8859-1"));
+    }
+
+    private boolean containsIgnoreCase(List<String> l, String s)
+    {
+      for (String x : l) {
+        if (x.equalsIgnoreCase(s))
+          return true;
+      }
+      return false;
+    }
+
+    private String str(List<Object> args, int i)
+    {
+      if (i >= args.size())
+        throw new RuntimeException("Missing argument");
+      Object o = args.get(i);
+      if (o instanceof byte[]) {
+        try {
+          return new String((byte[]) o, "ISO-8859-1");
+        } catch (java.io.UnsupportedEncodingException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+      if (!(o instanceof String))
+        throw new RuntimeException("Expected a string");
+      return (String) o;
+    }
+
+    private void sendString(String s) throws IOException
+    {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      nstring(bos, s);
+      send(bos.toByteArray());
+    }
+
+    private void send(String s) throws IOException
+    {
+      send(s.getBytes("ISO-8859-1"));
+    }
+
+    private void send(byte[] b) throws IOException
+    {
+      outThrottle.consume(b.length);
+      bytesOut.addAndGet(b.length);
+      out.write(b);
+    }
+
+    private void flush() throws IOException
+    {
+      out.flush();
+    }
+
+    /**
+     * A whole command, literals included, as a list of atoms and strings
+     * (String), literals (byte[]) and parenthesised lists (List).
+     */
+    private List<Object> readCommand() throws IOException
+    {
+      LinkedList<List<Object>> stack = new LinkedList<List<Object>>();
+      List<Object> top = new ArrayList<Object>();
+      stack.addFirst(top);
+      for (;;) {
+        String line = readLine();
+        if (line == null)
+          return null;
+        Matcher lm = LITERAL.matcher(line);
+        int len = -1;
+        boolean sync = true;
+        if (lm.find()) {
+          len = Integer.parseInt(lm.group(1));
+          sync = lm.group(2).length() == 0;
+          line = line.substring(0, lm.start());
+        }
+        tokenize(line, stack);
+        if (len < 0)
+          return top;
+        if (sync) {
+          send("+ Ready for literal data\r\n");
+          flush();
+        }
+        byte[] b = new byte[len];
+        int got = 0;
+        while (got < len) {
+          int r = in.read(b, got, len - got);
+          if (r < 0)
+            throw new EOFException();
+          got += r;
+        }
+        inThrottle.consume(len);
+        bytesIn.addAndGet(len);
+        stack.getFirst().add(b);
+      }
+    }
+
+    private String readLine() throws IOException
+    {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      int c;
+      while ((c = in.read()) >= 0) {
+        if (c == '\n')
+          break;
+        if (c != '\r')
+          bos.write(c);
+      }
+      if (c < 0 && bos.size() == 0)
+        return null;
+      inThrottle.consume(bos.size() + 2);
+      bytesIn.addAndGet(bos.size() + 2);
+      return bos.toString("ISO-8859-1");
+    }
+
+    private void tokenize(String s, LinkedList<List<Object>> stack)
+    {
+      int i = 0;
+      int n = s.length();
+      while (i < n) {
+        char c = s.charAt(i);
+        if (c == ' ') {
+          i++;
+        } else if (c == '(') {
+          List<Object> l = new ArrayList<Object>();
+          stack.getFirst().add(l);
+          stack.addFirst(l);
+          i++;
+        } else if (c == ')') {
+          if (stack.size() > 1)
+            stack.removeFirst();
+          i++;
+        } else if (c == '"') {
+          StringBuilder sb = new StringBuilder();
+          i++;
+          while (i < n && s.charAt(i) != '"') {
+            if (s.charAt(i) == '\\' && i + 1 < n)
+              i++;
+            sb.append(s.charAt(i++));
+          }
+          i++;
+          stack.getFirst().add(sb.toString());
+        } else {
+          // an atom; brackets, and anything in them, belong to it
+          int start = i;
+          int depth = 0;
+          while (i < n) {
+            char d = s.charAt(i);
+            if (d == '[')
+              depth++;
+            else if (d == ']')
+              depth--;
+            else if (depth == 0 && (d == ' ' || d == '(' || d == ')'))
+              break;
+            i++;
+          }
+          stack.getFirst().add(s.substring(start, i));
+        }
+      }
+    }
+  }
+
+  /**
+   * Every mailbox name of an account, for checking a sync's result.
+   */
+  public static List<String> mailboxNames(Account a)
+  {
+    synchronized (a) {
+      List<String> names = new ArrayList<String>();
+      Iterator<String> it = a.mailboxes.keySet().iterator();
+      while (it.hasNext())
+        names.add(it.next());
+      return names;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package org.sysmgr.imapmigr.bench;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.sysmgr.imapmigr.FingerprintSet;
+import org.sysmgr.imapmigr.FolderCheckpoint;
+import org.sysmgr.imapmigr.MigrationTrackingStore;
+import org.sysmgr.imapmigr.UidMap;
+import org.sysmgr.imapmigr.UserTotals;
+
+/**
+ * A MigrationTrackingStore that keeps everything in memory and forgets it on
+ * exit, so that a harness run measures the IMAP side and not a database.
+ * Log entries are counted and thrown away.
+ */
+public class MemoryMTS implements MigrationTrackingStore
+{
+  private static class UserData
+  {
+    Set<String> migrated = new HashSet<String>();
+    long messages = 0;
+    long bytes = 0;
+    Map<String, FolderCheckpoint> checkpoints
+      = new HashMap<String, FolderCheckpoint>();
+    Map<String, UidMap> uidMaps = new HashMap<String, UidMap>();
+  }
+
+  private final Map<String, UserData> users = new HashMap<String, UserData>();
+  private final Set<String> done = new HashSet<String>();
+  private long logged = 0;
+
+  private UserData user(String username)
+  {
+    UserData u = users.get(username);
+    if (u == null) {
+      u = new UserData();
+      users.put(username, u);
+    }
+    return u;
+  }
+
+  public synchronized void close()
+  {
+  }
+
+  public synchronized boolean isUserDone(String username)
+  {
+    return done.contains(username);
+  }
+
+  public synchronized void markUserDone(String username)
+  {
+    done.add(username);
+  }
+
+  public synchronized Set<String> getDoneUsers()
+  {
+    return new HashSet<String>(done);
+  }
+
+  public synchronized void recordMigration(String username,
+    String fingerprint, int size, String payload)
+  {
+    UserData u = user(username);
+    if (u.migrated.add(fingerprint)) {
+      u.messages++;
+      u.bytes += size;
+    }
+  }
+
+  public synchronized boolean isMigrated(String username, String fingerprint)
+  {
+    return user(username).migrated.contains(fingerprint);
+  }
+
+  public void flushMigrations(String username)
+  {
+  }
+
+  public synchronized FingerprintSet getMigratedForUser(String username)
+  {
+    UserData u = user(username);
+    FingerprintSet r = new FingerprintSet(u.migrated.size());
+    for (String fp : u.migrated) {
+      if (FingerprintSet.isFingerprint(fp))
+        r.add(fp);
+    }
+    return r;
+  }
+
+  public synchronized UserTotals getMigratedTotals(String username)
+  {
+    UserData u = user(username);
+    return new UserTotals(u.messages, u.bytes);
+  }
+
+  public synchronized FolderCheckpoint getCheckpoint(String username,
+    String folder)
+  {
+    FolderCheckpoint cp = user(username).checkpoints.get(folder);
+    return cp == null ? null : new FolderCheckpoint(cp.uidValidity,
+      cp.highUid, cp.highestModSeq);
+  }
+
+  public synchronized void saveCheckpoint(String username, String folder,
+    FolderCheckpoint cp)
+  {
+    user(username).checkpoints.put(folder,
+      new FolderCheckpoint(cp.uidValidity, cp.highUid, cp.highestModSeq));
+  }
+
+  public synchronized void recordUidMap(String username, String folder,
+    UidMap map)
+  {
+    UserData u = user(username);
+    UidMap m = u.uidMaps.get(folder);
+    if (m == null || m.srcUidValidity != map.srcUidValidity
+      || m.dstUidValidity != map.dstUidValidity) {
+      m = new UidMap(map.srcUidValidity, map.dstUidValidity);
+      u.uidMaps.put(folder, m);
+    }
+    for (int i = 0; i < map.size(); i++)
+      m.put(map.getSrcUid(i), map.getDstUid(i));
+  }
+
+  public synchronized UidMap getUidMap(String username, String folder,
+    long srcUidValidity, long dstUidValidity)
+  {
+    UidMap m = user(username).uidMaps.get(folder);
+    UidMap copy = new UidMap(srcUidValidity, dstUidValidity);
+    if (m != null && m.srcUidValidity == srcUidValidity
+      && m.dstUidValidity == dstUidValidity) {
+      for (int i = 0; i < m.size(); i++)
+        copy.put(m.getSrcUid(i), m.getDstUid(i));
+    }
+    return copy;
+  }
+
+  public synchronized void log(String system, String username,
+    String payload)
+  {
+    logged++;
+  }
+
+  public synchronized long getLogged()
+  {
+    return logged;
+  }
+
+  public long getLogDropped()
+  {
+    return 0;
+  }
+
+  public int getLogBacklog()
+  {
+    return 0;
+  }
+}
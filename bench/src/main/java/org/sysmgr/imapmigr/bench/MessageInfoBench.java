@@ -0,0 +1,72 @@
+package org.sysmgr.imapmigr.bench;
+
+import com.google.gson.JsonObject;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Folder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sysmgr.imapmigr.Fingerprinter;
+import org.sysmgr.imapmigr.IMAPUtils;
+
+/**
+ * What IMAPSync does for every source message: fingerprint it, and for the
+ * ones it copies build the MTS payload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageInfoBench
+{
+  private static final int MESSAGES = 1024;
+
+  @Param({"true", "false"})
+  public boolean withMessageId;
+
+  private StubMessage[] messages;
+  private int next = 0;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    Folder f = StubMessage.folder("INBOX/Projects/2011");
+    messages = new StubMessage[MESSAGES];
+    for (int i = 0; i < MESSAGES; i++)
+      messages[i] = StubMessage.make(f, i, withMessageId);
+  }
+
+  private StubMessage nextMessage()
+  {
+    next = (next + 1) & (MESSAGES - 1);
+    return messages[next];
+  }
+
+  @Benchmark
+  public byte[] fingerprint()
+  {
+    return IMAPUtils.getFingerprint(nextMessage(), Fingerprinter.get());
+  }
+
+  @Benchmark
+  public JsonObject infoJSON()
+  {
+    return IMAPUtils.getInfoJSON(nextMessage());
+  }
+
+  @Benchmark
+  public String infoJSONString()
+  {
+    return IMAPUtils.getInfoJSON(nextMessage()).toString();
+  }
+}
@@ -0,0 +1,54 @@
+package org.sysmgr.imapmigr.bench;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sysmgr.imapmigr.SetDiff;
+
+/**
+ * SetDiff over two sets that overlap by 90%, e.g. the folder names or
+ * fingerprints on both sides of a mostly finished migration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SetDiffBench
+{
+  @Param({"10000", "100000"})
+  public int size;
+
+  private Set<String> left;
+  private Set<String> right;
+
+  @Setup
+  public void setup()
+  {
+    left = new HashSet<String>();
+    right = new HashSet<String>();
+    int shift = size / 10;
+    for (int i = 0; i < size; i++) {
+      left.add("entry-" + i);
+      right.add("entry-" + (i + shift));
+    }
+  }
+
+  @Benchmark
+  public SetDiff<String> diff()
+  {
+    return new SetDiff<String>(left, right);
+  }
+}
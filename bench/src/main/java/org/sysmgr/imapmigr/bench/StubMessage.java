@@ -0,0 +1,103 @@
+package org.sysmgr.imapmigr.bench;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import java.util.Date;
+import java.util.Properties;
+import javax.mail.Address;
+import javax.mail.Folder;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * An IMAPMessage with its envelope fields already in hand, as they would be
+ * after the prefetch, so nothing here goes near a server.
+ */
+public class StubMessage extends IMAPMessage
+{
+  private static final Session session = Session.getInstance(new Properties());
+
+  private Folder folder;
+  private String messageId;
+  private String subject;
+  private Address sender;
+  private Date received;
+  private int size;
+
+  public StubMessage(Folder folder, String messageId, String subject,
+    Address sender, Date received, int size)
+  {
+    super(session);
+    this.folder = folder;
+    this.messageId = messageId;
+    this.subject = subject;
+    this.sender = sender;
+    this.received = received;
+    this.size = size;
+  }
+
+  /**
+   * A folder that is never opened, for StubMessage.getFolder().
+   */
+  public static Folder folder(String name) throws NoSuchProviderException
+  {
+    IMAPStore store = (IMAPStore) session.getStore("imap");
+    return new IMAPFolder(name, '/', store) {
+    };
+  }
+
+  /**
+   * @param i Seed; messages with the same seed are identical.
+   * @param withId Whether the message has a Message-ID header.
+   */
+  public static StubMessage make(Folder folder, int i, boolean withId)
+    throws Exception
+  {
+    return new StubMessage(folder,
+      withId ? "<" + Integer.toHexString(i * 0x9e3779b9) + "." + i
+        + "@Mail.Example.COM>" : null,
+      "Re: quarterly report draft " + i,
+      new InternetAddress("user" + (i % 97) + "@example.com",
+        "User " + (i % 97)),
+      new Date(1300000000000L + i * 60000L),
+      2000 + (i * 7919) % 200000);
+  }
+
+  @Override
+  public Folder getFolder()
+  {
+    return folder;
+  }
+
+  @Override
+  public String getMessageID()
+  {
+    return messageId;
+  }
+
+  @Override
+  public String getSubject()
+  {
+    return subject;
+  }
+
+  @Override
+  public Address getSender()
+  {
+    return sender;
+  }
+
+  @Override
+  public Date getReceivedDate()
+  {
+    return received;
+  }
+
+  @Override
+  public int getSize()
+  {
+    return size;
+  }
+}
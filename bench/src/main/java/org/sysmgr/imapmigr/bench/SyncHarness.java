@@ -0,0 +1,279 @@
+package org.sysmgr.imapmigr.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import org.sysmgr.imapmigr.IMAPSyncAction;
+import org.sysmgr.imapmigr.Nexus;
+
+/**
+ * Runs a whole imapsync, IMAPSyncAction and all, between two FakeImapServers
+ * with an in-memory MTS, and reports how fast it went and how much heap it
+ * needed.  Arguments are name=value pairs:
+ *
+ *   accounts   accounts to migrate (10)
+ *   messages   messages per account (200)
+ *   size       average message size in bytes (8192)
+ *   folders    folders per account besides INBOX, messages are spread
+ *              evenly over all of them (3)
+ *   threads    accounts migrated at once (4)
+ *   latency    ms each server waits before every command completes (0)
+ *   bandwidth  bytes per second per connection and direction, 0 for no cap
+ *   errors     chance of a FETCH, STATUS or APPEND failing (0)
+ *   drops      chance of a FETCH, STATUS or APPEND dropping the connection
+ *              (0)
+ *   proxy      yes to log in as admin and PROXYAUTH to each account (no)
+ *   present    percentage of each account's messages put in the destination
+ *              beforehand, as if copied by something else (0)
+ *   flagchanges  after the copy, change the flags of this many source
+ *              messages per account and sync again with imap.flagsync, then
+ *              check every copy's flags match (0)
+ *
+ * Anything given as prop.some.key=value is passed through as the property
+ * some.key, e.g. prop.imap.pipeline=yes.
+ *
+ *   java -cp bench/target/benchmarks.jar \
+ *     org.sysmgr.imapmigr.bench.SyncHarness accounts=20 latency=5
+ */
+public class SyncHarness
+{
+  public static void main(String[] argv) throws Exception
+  {
+    Map<String, String> args = new HashMap<String, String>();
+    for (String a : argv) {
+      int eq = a.indexOf('=');
+      if (eq < 1)
+        throw new IllegalArgumentException("Expected name=value: " + a);
+      args.put(a.substring(0, eq), a.substring(eq + 1));
+    }
+    int accounts = intArg(args, "accounts", 10);
+    int messages = intArg(args, "messages", 200);
+    int size = intArg(args, "size", 8192);
+    int folders = intArg(args, "folders", 3);
+    int threads = intArg(args, "threads", 4);
+    boolean proxy = "yes".equalsIgnoreCase(args.get("proxy"));
+    int present = intArg(args, "present", 0);
+    int flagChanges = intArg(args, "flagchanges", 0);
+
+    FakeImapServer.Settings fs = new FakeImapServer.Settings();
+    fs.latencyMillis = intArg(args, "latency", 0);
+    fs.bytesPerSecond = intArg(args, "bandwidth", 0);
+    fs.errorRate = args.containsKey("errors")
+      ? Double.parseDouble(args.get("errors")) : 0;
+    fs.dropRate = args.containsKey("drops")
+      ? Double.parseDouble(args.get("drops")) : 0;
+    FakeImapServer src = new FakeImapServer(fs);
+    FakeImapServer dst = new FakeImapServer(fs);
+    src.start();
+    dst.start();
+
+    File dir = File.createTempFile("syncharness", "");
+    dir.delete();
+    dir.mkdir();
+    File accountsFile = new File(dir, "accounts");
+    PrintWriter pw = new PrintWriter(new FileWriter(accountsFile));
+    long totalBytes = 0;
+    for (int a = 0; a < accounts; a++) {
+      String user = "user" + a;
+      pw.println(user + "|" + user + "|" + user);
+      src.addAccount(user, "secret");
+      dst.addAccount(user, "secret");
+      FakeImapServer.Mailbox[] boxes = new FakeImapServer.Mailbox[folders + 1];
+      FakeImapServer.Mailbox[] dstBoxes
+        = new FakeImapServer.Mailbox[folders + 1];
+      for (int f = 0; f <= folders; f++) {
+        // every other folder nested, so that parents get created first
+        String name = f == 0 ? "INBOX" : f % 2 == 0
+          ? "Archive" + (f - 1) + "/Sub" + f : "Archive" + f;
+        boxes[f] = src.addMailbox(user, name);
+        if (present > 0)
+          dstBoxes[f] = dst.addMailbox(user, name);
+      }
+      for (int m = 0; m < messages; m++) {
+        int seed = a * messages + m;
+        // sizes spread between half and one and a half times the average
+        int sz = size / 2 + (int) ((seed * 2654435761L) % Math.max(1, size));
+        byte[] raw = FakeImapServer.makeMessage(seed, sz);
+        totalBytes += raw.length;
+        Date date = new Date(1300000000000L + seed * 60000L);
+        src.addMessage(boxes[m % boxes.length], raw, null, date);
+        if (m * 100 < present * messages)
+          dst.addMessage(dstBoxes[m % boxes.length], raw, null, date);
+      }
+    }
+    pw.close();
+
+    Properties p = new Properties();
+    for (String side : new String[] { "src", "dst" }) {
+      FakeImapServer s = side.equals("src") ? src : dst;
+      p.setProperty(side + ".hostname", "127.0.0.1");
+      p.setProperty(side + ".port", String.valueOf(s.getPort()));
+      p.setProperty(side + ".userpattern", "%%USER%%");
+      p.setProperty(side + ".usessl", "no");
+      if (proxy) {
+        p.setProperty(side + ".proxyauth.admin", fs.adminUser);
+        p.setProperty(side + ".password", fs.adminPassword);
+        p.setProperty(side + ".proxyauth.reuse", "yes");
+      } else {
+        p.setProperty(side + ".password", "secret");
+      }
+    }
+    p.setProperty("accountsfile", accountsFile.getPath());
+    p.setProperty("imap.log.filename",
+      new File(dir, "imapsync.log").getPath());
+    p.setProperty("imap.metrics.interval", "0");
+    if (flagChanges > 0)
+      p.setProperty("imap.flagsync", "yes");
+    for (Map.Entry<String, String> e : args.entrySet()) {
+      if (e.getKey().startsWith("prop."))
+        p.setProperty(e.getKey().substring(5), e.getValue());
+    }
+
+    Nexus n = new Nexus(p);
+    MemoryMTS mts = new MemoryMTS();
+    n.setMigrationTrackingStore(mts);
+
+    System.gc();
+    for (MemoryPoolMXBean mp : ManagementFactory.getMemoryPoolMXBeans())
+      mp.resetPeakUsage();
+    IMAPSyncAction action = new IMAPSyncAction(n, threads, null, true);
+    long begin = System.nanoTime();
+    action.doAction();
+    long nanos = System.nanoTime() - begin;
+    long heapPeak = 0;
+    for (MemoryPoolMXBean mp : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (mp.getType() == MemoryType.HEAP)
+        heapPeak += mp.getPeakUsage().getUsed();
+    }
+    action.close();
+
+    int mismatched = 0;
+    double flagSecs = 0;
+    if (flagChanges > 0) {
+      changeFlags(src, accounts, flagChanges);
+      // Nexus reads the properties as it goes
+      p.setProperty("imap.log.filename",
+        new File(dir, "imapsync-flags.log").getPath());
+      action = new IMAPSyncAction(n, threads, null, true);
+      begin = System.nanoTime();
+      action.doAction();
+      flagSecs = (System.nanoTime() - begin) / 1e9;
+      action.close();
+      for (int a = 0; a < accounts; a++)
+        mismatched += compareFlags(src, dst, "user" + a);
+    }
+
+    long copied = 0;
+    long copiedBytes = 0;
+    int short_ = 0;
+    for (int a = 0; a < accounts; a++) {
+      FakeImapServer.Account acc = dst.getAccount("user" + a);
+      long c = 0;
+      for (String name : FakeImapServer.mailboxNames(acc)) {
+        FakeImapServer.Mailbox mb = acc.mailboxes.get(name);
+        c += mb.size();
+        copiedBytes += mb.bytes();
+      }
+      copied += c;
+      if (c < messages)
+        short_++;
+    }
+    src.close();
+    dst.close();
+
+    double secs = nanos / 1e9;
+    System.out.printf("accounts=%d messages=%d bytes=%d threads=%d"
+      + " latency=%dms bandwidth=%d errors=%s drops=%s%n", accounts,
+      (long) accounts * messages, totalBytes, threads, fs.latencyMillis,
+      fs.bytesPerSecond, fs.errorRate, fs.dropRate);
+    System.out.printf("copied %d messages, %d bytes in %.2fs%n", copied,
+      copiedBytes, secs);
+    System.out.printf("%.1f msgs/s, %.1f KB/s, heap peak %.1f MB%n",
+      copied / secs, copiedBytes / secs / 1024, heapPeak / 1048576.0);
+    System.out.printf("src sent %d bytes, dst received %d bytes%n",
+      src.getBytesOut(), dst.getBytesIn());
+    if (flagChanges > 0)
+      System.out.printf("changed flags of %d messages, synced in %.2fs, %d"
+        + " copies' flags differ%n", (long) accounts * flagChanges, flagSecs,
+        mismatched);
+    if (short_ > 0)
+      System.out.println(short_ + " accounts not fully copied, see "
+        + dir + "/imapsync.log");
+    if (mismatched > 0)
+      System.out.println(mismatched + " copies with the wrong flags, see "
+        + dir + "/imapsync.log");
+    System.exit(short_ > 0 || mismatched > 0 ? 1 : 0);
+  }
+
+  /**
+   * Give count source messages of each account, spread over its folders, a
+   * new set of flags.
+   */
+  private static void changeFlags(FakeImapServer src, int accounts, int count)
+  {
+    String[][] sets = { { "\\Seen" }, { "\\Seen", "\\Flagged" },
+      { "\\Answered", "$Work" }, {} };
+    for (int a = 0; a < accounts; a++) {
+      FakeImapServer.Account acc = src.getAccount("user" + a);
+      List<FakeImapServer.Mailbox> boxes
+        = new ArrayList<FakeImapServer.Mailbox>();
+      List<FakeImapServer.StoredMessage> msgs
+        = new ArrayList<FakeImapServer.StoredMessage>();
+      for (String name : FakeImapServer.mailboxNames(acc)) {
+        FakeImapServer.Mailbox mb = acc.mailboxes.get(name);
+        for (FakeImapServer.StoredMessage m : mb.messages) {
+          boxes.add(mb);
+          msgs.add(m);
+        }
+      }
+      int step = Math.max(1, msgs.size() / count);
+      for (int i = 0, n = 0; i < msgs.size() && n < count; i += step, n++) {
+        src.setFlags(boxes.get(i), msgs.get(i), new HashSet<String>(
+          Arrays.asList(sets[n % sets.length])));
+      }
+    }
+  }
+
+  /**
+   * @return Destination messages whose flags are not their source's.
+   */
+  private static int compareFlags(FakeImapServer src, FakeImapServer dst,
+    String user)
+  {
+    Map<String, Set<String>> want = new HashMap<String, Set<String>>();
+    FakeImapServer.Account acc = src.getAccount(user);
+    for (String name : FakeImapServer.mailboxNames(acc)) {
+      for (FakeImapServer.StoredMessage m : acc.mailboxes.get(name).messages)
+        want.put(m.messageId, m.flags);
+    }
+    int wrong = 0;
+    acc = dst.getAccount(user);
+    for (String name : FakeImapServer.mailboxNames(acc)) {
+      for (FakeImapServer.StoredMessage m : acc.mailboxes.get(name).messages) {
+        Set<String> w = want.get(m.messageId);
+        if (w != null && !w.equals(m.flags))
+          wrong++;
+      }
+    }
+    return wrong;
+  }
+
+  private static int intArg(Map<String, String> args, String name,
+    int defval)
+  {
+    String v = args.get(name);
+    return v == null ? defval : Integer.parseInt(v);
+  }
+}
@@ -0,0 +1,79 @@
+package org.sysmgr.imapmigr.bench;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sysmgr.imapmigr.SetDiff;
+import org.sysmgr.imapmigr.UidSet;
+
+/**
+ * The UIDs of a source folder against those of its copy, as UidSet.Diff and
+ * as SetDiff over boxed Longs: the source has had one message in 50
+ * expunged, and the copy is missing its last tenth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UidSetBench
+{
+  @Param({"10000", "500000"})
+  public int size;
+
+  private UidSet left;
+  private UidSet right;
+  private Set<Long> leftSet;
+  private Set<Long> rightSet;
+  private String leftString;
+
+  @Setup
+  public void setup()
+  {
+    left = new UidSet();
+    right = new UidSet();
+    leftSet = new HashSet<Long>();
+    rightSet = new HashSet<Long>();
+    for (long uid = 1; uid <= size; uid++) {
+      if (uid % 50 != 0) {
+        left.add(uid);
+        leftSet.add(uid);
+      }
+      if (uid <= size - size / 10) {
+        right.add(uid);
+        rightSet.add(uid);
+      }
+    }
+    leftString = left.toString();
+  }
+
+  @Benchmark
+  public UidSet.Diff diff()
+  {
+    return new UidSet.Diff(left, right);
+  }
+
+  @Benchmark
+  public SetDiff<Long> setDiff()
+  {
+    return new SetDiff<Long>(leftSet, rightSet);
+  }
+
+  @Benchmark
+  public UidSet parse()
+  {
+    return UidSet.parse(leftString);
+  }
+}
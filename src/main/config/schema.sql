@@ -21,3 +21,24 @@ CREATE TABLE LOG (
   PAYLOAD     VARCHAR(4096),
   PRIMARY KEY (ID)
 );
+
+CREATE TABLE FOLDERSTATE (
+  USERNAME    VARCHAR(255)   NOT NULL,
+  FOLDER      VARCHAR(1024)  NOT NULL,
+  UIDVALIDITY BIGINT         NOT NULL,
+  HIGHUID     BIGINT         NOT NULL,
+  HIGHESTMODSEQ BIGINT       NOT NULL DEFAULT 0,
+  PRIMARY KEY (USERNAME, FOLDER)
+);
+-- databases created before HIGHESTMODSEQ was added need:
+--   ALTER TABLE FOLDERSTATE ADD COLUMN HIGHESTMODSEQ BIGINT NOT NULL DEFAULT 0;
+
+CREATE TABLE UIDMAP (
+  USERNAME       VARCHAR(255)  NOT NULL,
+  FOLDER         VARCHAR(1024) NOT NULL,
+  SRCUIDVALIDITY BIGINT        NOT NULL,
+  SRCUID         BIGINT        NOT NULL,
+  DSTUIDVALIDITY BIGINT        NOT NULL,
+  DSTUID         BIGINT        NOT NULL,
+  PRIMARY KEY (USERNAME, FOLDER, SRCUIDVALIDITY, SRCUID)
+);
@@ -16,12 +16,12 @@ public class AccountListLine
   public AccountListLine(String line) throws EmptyLine
   {
     String oline = line;
-    line.replaceAll("#.*", ""); // remove shell-style comments
+    line = line.replaceAll("#.*", ""); // remove shell-style comments
     line = line.trim();
     if (line.length() < 1)
       throw new EmptyLine();
 
-    String[] terms = line.split("|");
+    String[] terms = line.split("\\|");
     if (terms.length != 3)
       throw new RuntimeException("Malformed input line: " + oline);
 
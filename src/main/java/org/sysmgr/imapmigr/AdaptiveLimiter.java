@@ -0,0 +1,128 @@
+package org.sysmgr.imapmigr;
+
+/**
+ * Limits how many accounts are active against one server, adjusting the limit
+ * AIMD-style from the latency and failure of the commands sent to it.  Every
+ * window of samples the limit goes up by one if the server kept up and the
+ * limit was actually being used, and is cut to backoffPercent of itself if
+ * the average latency went over target or too many commands failed.
+ */
+public class AdaptiveLimiter
+{
+  private String name;
+  private int min;
+  private int max;
+  private long target;
+  private int window;
+  private int maxErrorPercent;
+  private int backoffPercent;
+
+  private double limit;
+  private int inFlight = 0;
+  private int samples = 0;
+  private int errors = 0;
+  private long totalMillis = 0;
+
+  /**
+   * @param name Server the limiter is for.
+   * @param initial Starting limit.
+   * @param min Lowest the limit may be cut to.
+   * @param max Highest the limit may grow to.
+   * @param target Average command latency in ms above which we back off.
+   * @param window Samples per adjustment.
+   * @param maxErrorPercent Failed commands per window above which we back off.
+   * @param backoffPercent Share of the limit kept when backing off.
+   */
+  public AdaptiveLimiter(String name, int initial, int min, int max,
+    long target, int window, int maxErrorPercent, int backoffPercent)
+  {
+    if (min < 1 || max < min || window < 1 || backoffPercent < 1
+        || backoffPercent > 99)
+      throw new IllegalArgumentException("Bad limits for " + name + ".");
+    this.name = name;
+    this.min = min;
+    this.max = max;
+    this.target = target;
+    this.window = window;
+    this.maxErrorPercent = maxErrorPercent;
+    this.backoffPercent = backoffPercent;
+    this.limit = Math.max(min, Math.min(max, initial));
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public synchronized int getLimit()
+  {
+    return (int) limit;
+  }
+
+  public synchronized int getInFlight()
+  {
+    return inFlight;
+  }
+
+  /**
+   * Wait up to timeout ms for a slot.
+   *
+   * @return true if we got one, which must then be given back with release().
+   */
+  public synchronized boolean tryAcquire(long timeout)
+  {
+    long until = System.currentTimeMillis() + timeout;
+    while (inFlight >= (int) limit) {
+      long left = until - System.currentTimeMillis();
+      if (left <= 0)
+        return false;
+      try {
+        wait(left);
+      } catch (InterruptedException ex) {
+      }
+    }
+    inFlight++;
+    return true;
+  }
+
+  public synchronized void release()
+  {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Record how long one command to this server took, and whether it failed.
+   *
+   * @return true if that changed the limit.
+   */
+  public synchronized boolean sample(long millis, boolean error)
+  {
+    samples++;
+    totalMillis += millis;
+    if (error)
+      errors++;
+    if (samples < window)
+      return false;
+
+    int old = (int) limit;
+    if (errors * 100 > maxErrorPercent * samples
+        || totalMillis / samples > target) {
+      limit = Math.max(min, limit * backoffPercent / 100);
+    } else if (inFlight >= old) {
+      // only grow a limit that is actually being reached
+      limit = Math.min(max, limit + 1);
+    }
+    samples = 0;
+    errors = 0;
+    totalMillis = 0;
+    notifyAll();
+    return (int) limit != old;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return name + " " + inFlight + "/" + (int) limit;
+  }
+}
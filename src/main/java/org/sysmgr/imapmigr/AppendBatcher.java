@@ -0,0 +1,582 @@
+package org.sysmgr.imapmigr;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.Literal;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Collects messages destined for one folder and APPENDs them in batches
+ * capped by message count and by total size.  If the destination advertises
+ * MULTIAPPEND a batch goes over as a single APPEND command; with LITERAL+ the
+ * APPENDs are pipelined and the tagged responses collected afterwards;
+ * otherwise we fall back to one APPEND per message.  The Listener hears about
+ * each message only once the server has acknowledged it.
+ *
+ * With setRawTransfer() a message whose body has not been fetched is not
+ * serialised through JavaMail at all: its literal is filled straight from
+ * partial BODY.PEEK[] FETCHes on the source, a chunk at a time, as the APPEND
+ * is written, so the destination gets the source's bytes unaltered and no
+ * more than one chunk of a large message is ever in memory.  A message no
+ * bigger than a chunk is fetched when its APPEND is put together.  Either
+ * way the source's RFC822.SIZE is checked against its BODY[] first, and a
+ * message where they differ is serialised after all.
+ *
+ * Otherwise a message MessageSpool considers large is written to a spool
+ * file when its turn comes to be sent, and sent from there.
+ *
+ * If the destination says where the messages went (an APPENDUID response
+ * code, from UIDPLUS), the Listener gets that too.
+ */
+public class AppendBatcher implements AppendSink
+{
+  public static class Pending
+  {
+    public IMAPMessage message;
+    public String fingerprint;
+    public int size;
+    public String payload;
+    /**
+     * The message as it is to be sent, if it has been fetched already;
+     * otherwise it is serialised from the source message when sent.
+     */
+    public byte[] body;
+    /** Source UID, -1 if not known. */
+    public long uid = -1;
+    /** Where the server put it, -1 if it didn't say. */
+    public long dstUidValidity = -1;
+    public long dstUid = -1;
+
+    public Pending(IMAPMessage message, String fingerprint, int size,
+      String payload)
+    {
+      this.message = message;
+      this.fingerprint = fingerprint;
+      this.size = size;
+      this.payload = payload;
+    }
+  }
+
+  public interface Listener
+  {
+    void appended(Pending p);
+  }
+
+  private IMAPFolder dstf;
+  private int maxCount;
+  private long maxBytes;
+  private Listener listener;
+  private boolean multiAppend;
+  private boolean literalPlus;
+  private List<Pending> batch = new ArrayList<Pending>();
+  private long batchBytes = 0;
+  private AdaptiveLimiter limiter;
+  private int rawChunkSize = 0;
+  private ByteArray rawBuffer;
+  private List<SpooledLiteral> spooled = new ArrayList<SpooledLiteral>();
+
+  private static final Pattern APPENDUID = Pattern.compile(
+    "\\[APPENDUID (\\d+) ([0-9:,]+)\\]", Pattern.CASE_INSENSITIVE);
+
+  public AppendBatcher(IMAPFolder dstf, int maxCount, long maxBytes,
+    Listener listener) throws MessagingException
+  {
+    this.dstf = dstf;
+    this.maxCount = maxCount;
+    this.maxBytes = maxBytes;
+    this.listener = listener;
+    IMAPStore store = (IMAPStore) dstf.getStore();
+    multiAppend = store.hasCapability("MULTIAPPEND");
+    literalPlus = store.hasCapability("LITERAL+");
+  }
+
+  /**
+   * Report the latency and outcome of every APPEND command to this limiter.
+   */
+  public void setLimiter(AdaptiveLimiter limiter)
+  {
+    this.limiter = limiter;
+  }
+
+  /**
+   * Stream unfetched messages from the source in chunks of this many bytes
+   * rather than serialising them.  The source must be IMAP4rev1.
+   */
+  public void setRawTransfer(int chunkSize)
+  {
+    rawChunkSize = chunkSize;
+    rawBuffer = new ByteArray(chunkSize + 1024);
+  }
+
+  public void add(Pending p) throws MessagingException
+  {
+    if (batch.size() > 0 && batchBytes + p.size > maxBytes)
+      flush();
+    batch.add(p);
+    batchBytes += p.size;
+    if (batch.size() >= maxCount || batchBytes >= maxBytes)
+      flush();
+  }
+
+  public int getPendingCount()
+  {
+    return batch.size();
+  }
+
+  public void flush() throws MessagingException
+  {
+    if (batch.size() < 1)
+      return;
+    List<Pending> b = batch;
+    batch = new ArrayList<Pending>();
+    batchBytes = 0;
+
+    if (b.size() == 1 || (!multiAppend && !literalPlus)) {
+      // one plain APPEND per message
+      for (Pending p : b) {
+        List<Pending> one = new ArrayList<Pending>(1);
+        one.add(p);
+        appendMulti(one);
+      }
+    } else if (multiAppend) {
+      appendMulti(b);
+    } else {
+      appendPipelined(b);
+    }
+  }
+
+  /**
+   * Throw away anything not yet sent, e.g. when abandoning a folder after an
+   * error.
+   */
+  public void discard()
+  {
+    batch.clear();
+    batchBytes = 0;
+  }
+
+  /**
+   * One APPEND carrying every message in the batch; with a single message
+   * this is an ordinary APPEND and needs no MULTIAPPEND support.
+   */
+  private void appendMulti(final List<Pending> b) throws MessagingException
+  {
+    final String mbox = BASE64MailboxEncoder.encode(dstf.getFullName());
+    final Argument args = new Argument();
+    args.writeString(mbox);
+    for (Pending p : b)
+      writeMessage(args, p);
+
+    long begin = System.nanoTime();
+    Response result;
+    try {
+      result = (Response) dstf.doCommand(new IMAPFolder.ProtocolCommand() {
+        public Object doCommand(IMAPProtocol p) throws ProtocolException
+        {
+          Response[] r = p.command("APPEND", args);
+          p.notifyResponseHandlers(r);
+          p.handleResult(r[r.length - 1]);
+          return r[r.length - 1];
+        }
+      });
+    } catch (MessagingException ex) {
+      sample(begin, true);
+      throw ex;
+    } finally {
+      releaseSpooled();
+    }
+    sample(begin, false);
+    noteAppendUid(result, b);
+    for (Pending p : b)
+      listener.appended(p);
+  }
+
+  private void appendPipelined(final List<Pending> b) throws MessagingException
+  {
+    final String mbox = BASE64MailboxEncoder.encode(dstf.getFullName());
+    final Argument[] args = new Argument[b.size()];
+    for (int i = 0; i < b.size(); i++) {
+      args[i] = new Argument();
+      args[i].writeString(mbox);
+      writeMessage(args[i], b.get(i));
+    }
+
+    long begin = System.nanoTime();
+    Response[] results;
+    try {
+      results = (Response[]) dstf.doCommand(new IMAPFolder.ProtocolCommand() {
+        public Object doCommand(IMAPProtocol p) throws ProtocolException
+        {
+          synchronized (p) {
+            return pipeline(p, args);
+          }
+        }
+      });
+    } catch (MessagingException ex) {
+      sample(begin, true);
+      throw ex;
+    } finally {
+      releaseSpooled();
+    }
+
+    MessagingException failure = null;
+    for (int i = 0; i < b.size(); i++) {
+      if (results[i] != null && results[i].isOK()) {
+        noteAppendUid(results[i], b.subList(i, i + 1));
+        listener.appended(b.get(i));
+      } else if (failure == null) {
+        failure = new MessagingException("APPEND failed: "
+          + (results[i] == null ? "no response" : results[i].toString()));
+      }
+    }
+    sample(begin, failure != null);
+    if (failure != null)
+      throw failure;
+  }
+
+  /**
+   * Fill in dstUid from the APPENDUID code of a tagged OK, if it accounts
+   * for every message in the batch, in order.  The set is taken in the
+   * order the server wrote it, which is the order of the messages, and left
+   * alone unless it ascends, as a UidSet would put it in order and pair
+   * messages with the wrong UIDs.
+   */
+  static void noteAppendUid(Response r, List<Pending> b)
+  {
+    Matcher m = APPENDUID.matcher(r.toString());
+    if (!m.find())
+      return;
+    long[] uids = new long[b.size()];
+    int n = 0;
+    long last = 0;
+    try {
+      for (String range : m.group(2).split(",")) {
+        int colon = range.indexOf(':');
+        long lo = Long.parseLong(colon < 0 ? range : range.substring(0, colon));
+        long hi = colon < 0 ? lo : Long.parseLong(range.substring(colon + 1));
+        if (lo <= last || hi < lo || hi > UidSet.MAX_UID
+            || hi - lo >= uids.length - n)
+          return;
+        for (long u = lo; u <= hi; u++)
+          uids[n++] = u;
+        last = hi;
+      }
+    } catch (NumberFormatException ex) {
+      return;
+    }
+    if (n != uids.length)
+      return;
+    long uidValidity = Long.parseLong(m.group(1));
+    for (int i = 0; i < n; i++) {
+      b.get(i).dstUidValidity = uidValidity;
+      b.get(i).dstUid = uids[i];
+    }
+  }
+
+  /**
+   * Any spool file a failed APPEND never got as far as sending.
+   */
+  private void releaseSpooled()
+  {
+    for (SpooledLiteral sl : spooled)
+      sl.release();
+    spooled.clear();
+  }
+
+  private void sample(long begin, boolean error)
+  {
+    if (limiter != null)
+      limiter.sample((System.nanoTime() - begin) / 1000000, error);
+    Metrics.record(Metrics.APPEND, begin);
+  }
+
+  /**
+   * Write every APPEND before reading any tagged response.  Only safe with
+   * LITERAL+, where no continuation request has to be waited for.
+   */
+  private static Response[] pipeline(IMAPProtocol p, Argument[] args)
+    throws ProtocolException
+  {
+    String[] tags = new String[args.length];
+    Response[] results = new Response[args.length];
+    List<Response> untagged = new ArrayList<Response>();
+    int outstanding = 0;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        tags[i] = p.writeCommand("APPEND", args[i]);
+        outstanding++;
+      }
+      while (outstanding > 0) {
+        Response r = p.readResponse();
+        if (r.isTagged()) {
+          for (int i = 0; i < tags.length; i++) {
+            if (r.getTag().equals(tags[i])) {
+              results[i] = r;
+              outstanding--;
+              break;
+            }
+          }
+        } else {
+          untagged.add(r);
+          if (r.isBYE())
+            break;
+        }
+      }
+    } catch (IOException ioe) {
+      untagged.add(Response.byeResponse(ioe));
+    }
+    p.notifyResponseHandlers(untagged.toArray(new Response[untagged.size()]));
+    return results;
+  }
+
+  /**
+   * Flags, INTERNALDATE and message literal for one APPEND, copied the same
+   * way IMAPFolder.appendMessages() does.
+   */
+  private void writeMessage(Argument args, Pending p)
+    throws MessagingException
+  {
+    IMAPMessage m = p.message;
+    Flags f = new Flags(m.getFlags());
+    f.remove(Flags.Flag.RECENT);
+    String fl = IMAPUtils.getFlagList(f);
+    if (fl != null)
+      args.writeAtom(fl);
+    Date d = m.getReceivedDate();
+    if (d == null)
+      d = m.getSentDate();
+    if (d != null)
+      args.writeString(INTERNALDATE.format(d));
+    Literal lit = null;
+    if (p.body != null)
+      lit = new MessageLiteral(m, p.body);
+    else if (rawChunkSize > 0 && p.size > 0)
+      lit = rawLiteral(m, p.size);
+    if (lit == null) {
+      if (MessageSpool.isLarge(p.size)) {
+        SpooledLiteral sl = new SpooledLiteral(m);
+        spooled.add(sl);
+        lit = sl;
+      } else {
+        lit = new MessageLiteral(m, null);
+      }
+    }
+    args.writeBytes(lit);
+  }
+
+  /**
+   * The literal for a message copied raw, once the source's BODY[] is known
+   * to be as long as its RFC822.SIZE: the literal's length goes out before
+   * any of it, and a source that then sends a different number of bytes
+   * leaves nothing to do but drop the connection.  A message that fits in
+   * one chunk is fetched whole here and now, otherwise the bytes either
+   * side of the end.
+   *
+   * @return null if the sizes disagree, for the message to be serialised
+   *   by JavaMail instead.
+   */
+  private Literal rawLiteral(IMAPMessage m, int size)
+    throws MessagingException
+  {
+    long begin = System.nanoTime();
+    if (size <= rawChunkSize) {
+      // one byte more than there should be, to see that there isn't
+      ByteArray ba = peekBody(m, 0, size + 1, rawBuffer);
+      Metrics.record(Metrics.FETCH_BODY, begin);
+      if (ba != null && ba.getCount() == size) {
+        byte[] body = new byte[size];
+        System.arraycopy(ba.getBytes(), ba.getStart(), body, 0, size);
+        return new MessageLiteral(m, body);
+      }
+    } else {
+      ByteArray ba = peekBody(m, size - 1, 2, rawBuffer);
+      if (ba != null && ba.getCount() == 1)
+        return new RawLiteral(m, size, rawChunkSize, rawBuffer);
+    }
+    System.err.println("WARNING: BODY[] of message " + m.getMessageNumber()
+      + " in " + m.getFolder().getFullName() + " is not its RFC822.SIZE of "
+      + size + " bytes; copying it through JavaMail.");
+    return null;
+  }
+
+  /**
+   * BODY.PEEK[]<start.count> of a source message, into buffer.
+   *
+   * @return null if the server sent no body.
+   */
+  static ByteArray peekBody(IMAPMessage m, final int start, final int count,
+    final ByteArray buffer) throws MessagingException
+  {
+    IMAPFolder f = (IMAPFolder) m.getFolder();
+    final int msgno = m.getMessageNumber();
+    BODY b = (BODY) f.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException
+      {
+        return p.peekBody(msgno, "", start, count, buffer);
+      }
+    });
+    return b == null ? null : b.getByteArray();
+  }
+
+  /**
+   * The message as serialised by JavaMail, buffered only while it is being
+   * sent so that a batch does not hold every body in memory at once (unless
+   * the body was fetched ahead of time).
+   */
+  static class MessageLiteral implements Literal
+  {
+    private Message m;
+    private byte[] buf;
+
+    MessageLiteral(Message m, byte[] body)
+    {
+      this.m = m;
+      this.buf = body;
+    }
+
+    public int size()
+    {
+      if (buf == null) {
+        try {
+          buf = IMAPUtils.getMessageBytes(m);
+        } catch (Exception ex) {
+          throw new RuntimeException("Could not serialise message for APPEND: "
+            + ex.getMessage(), ex);
+        }
+      }
+      return buf.length;
+    }
+
+    public void writeTo(OutputStream os) throws IOException
+    {
+      size();
+      os.write(buf);
+      buf = null;
+    }
+  }
+
+  /**
+   * A large message, spooled to disk when the literal is about to be sent
+   * and streamed from there.  Only one literal of a command is being written
+   * at a time, so a batch holds at most one spool slot.
+   */
+  static class SpooledLiteral implements Literal
+  {
+    private Message m;
+    private MessageSpool spool;
+
+    SpooledLiteral(Message m)
+    {
+      this.m = m;
+    }
+
+    public int size()
+    {
+      if (spool == null) {
+        try {
+          spool = MessageSpool.spool(m);
+        } catch (Exception ex) {
+          throw new RuntimeException("Could not spool message for APPEND: "
+            + ex.getMessage(), ex);
+        }
+      }
+      return (int) spool.size();
+    }
+
+    public void writeTo(OutputStream os) throws IOException
+    {
+      size();
+      try {
+        spool.writeTo(os);
+      } finally {
+        release();
+      }
+    }
+
+    void release()
+    {
+      if (spool != null)
+        spool.release();
+    }
+  }
+
+  /**
+   * The message's RFC822.SIZE bytes of BODY[], copied from the source a
+   * chunk at a time while the literal is being written.  Each chunk is read
+   * into the same buffer, and the source connection is only held while a
+   * chunk is being fetched.
+   */
+  static class RawLiteral implements Literal
+  {
+    private IMAPMessage m;
+    private int size;
+    private int chunkSize;
+    private ByteArray buffer;
+
+    RawLiteral(IMAPMessage m, int size, int chunkSize, ByteArray buffer)
+    {
+      this.m = m;
+      this.size = size;
+      this.chunkSize = chunkSize;
+      this.buffer = buffer;
+    }
+
+    public int size()
+    {
+      return size;
+    }
+
+    public void writeTo(OutputStream os) throws IOException
+    {
+      long begin = System.nanoTime();
+      int msgno = m.getMessageNumber();
+      int off = 0;
+      while (off < size) {
+        // one byte past the end on the last chunk, to see that it is the end
+        int count = size - off > chunkSize ? chunkSize : size - off + 1;
+        ByteArray ba;
+        try {
+          ba = peekBody(m, off, count, buffer);
+        } catch (MessagingException ex) {
+          IOException ioe = new IOException("Could not fetch message from"
+            + " source: " + ex.getMessage());
+          ioe.initCause(ex);
+          throw ioe;
+        }
+        // The literal's length has been sent already, so a source that
+        //   sends less than RFC822.SIZE promised leaves us stuck.  It was
+        //   checked before the APPEND, so the message changed since.
+        if (ba == null || ba.getCount() == 0)
+          throw new IOException("Source sent only " + off + " of the " + size
+            + " bytes it said message " + msgno + " had.");
+        // Nor can we send more than that, and cutting the message short
+        //   would lose the end of it.
+        if (ba.getCount() > size - off)
+          throw new IOException("Source's message " + msgno + " is longer"
+            + " than the " + size + " bytes of its RFC822.SIZE.");
+        int n = ba.getCount();
+        os.write(ba.getBytes(), ba.getStart(), n);
+        off += n;
+      }
+      Metrics.record(Metrics.FETCH_BODY, begin);
+    }
+  }
+}
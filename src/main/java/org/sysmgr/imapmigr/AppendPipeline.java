@@ -0,0 +1,160 @@
+package org.sysmgr.imapmigr;
+
+import java.util.LinkedList;
+import javax.mail.MessagingException;
+
+/**
+ * Runs an AppendBatcher on its own thread so that the destination APPENDs
+ * one message while the source is still sending the next.  Messages handed
+ * to add() should already have their body fetched; they wait in a buffer
+ * capped at maxBytes of message, and add() blocks while it is full.
+ *
+ * Order is preserved and the batcher's listener is called, in order, from the
+ * pipeline thread.  If appending fails the error is rethrown from the next
+ * add() or flush() call on the producer's side.
+ */
+public class AppendPipeline implements AppendSink
+{
+  private final AppendBatcher batcher;
+  private final long maxBytes;
+  private final Object lock = new Object();
+  private final LinkedList<AppendBatcher.Pending> queue
+    = new LinkedList<AppendBatcher.Pending>();
+  private long queuedBytes = 0;
+  private int inHand = 0;
+  private int batcherPending = 0;
+  private boolean flushRequested = false;
+  private boolean closed = false;
+  private Throwable failure = null;
+  private final Thread consumer;
+
+  public AppendPipeline(AppendBatcher batcher, long maxBytes, String name)
+  {
+    this.batcher = batcher;
+    this.maxBytes = maxBytes;
+    consumer = new Thread(new Runnable() {
+      public void run()
+      {
+        consume();
+      }
+    });
+    consumer.setName("Pipeline-" + name);
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  public void add(AppendBatcher.Pending p) throws MessagingException
+  {
+    synchronized (lock) {
+      // A message bigger than the whole buffer still goes through, alone.
+      while (failure == null && !queue.isEmpty()
+          && queuedBytes + p.size > maxBytes)
+        waitQuietly();
+      checkFailure();
+      queue.addLast(p);
+      queuedBytes += p.size;
+      lock.notifyAll();
+    }
+  }
+
+  public void flush() throws MessagingException
+  {
+    synchronized (lock) {
+      flushRequested = true;
+      lock.notifyAll();
+      while (failure == null && flushRequested)
+        waitQuietly();
+      checkFailure();
+    }
+  }
+
+  public int getPendingCount()
+  {
+    synchronized (lock) {
+      return queue.size() + inHand + batcherPending;
+    }
+  }
+
+  /**
+   * Drop whatever is still queued and wait for the pipeline thread to stop.
+   */
+  public void discard()
+  {
+    synchronized (lock) {
+      closed = true;
+      queue.clear();
+      queuedBytes = 0;
+      lock.notifyAll();
+    }
+    while (consumer.isAlive()) {
+      try {
+        consumer.join();
+      } catch (InterruptedException ex) {
+      }
+    }
+    batcher.discard();
+  }
+
+  private void consume()
+  {
+    for (;;) {
+      AppendBatcher.Pending p = null;
+      synchronized (lock) {
+        while (!closed && queue.isEmpty() && !flushRequested)
+          waitQuietly();
+        if (closed)
+          return;
+        if (!queue.isEmpty()) {
+          p = queue.removeFirst();
+          queuedBytes -= p.size;
+          inHand = 1;
+          lock.notifyAll();
+        }
+      }
+
+      try {
+        if (p != null)
+          batcher.add(p);
+        else
+          batcher.flush();
+      } catch (Throwable t) {
+        synchronized (lock) {
+          failure = t;
+          inHand = 0;
+          lock.notifyAll();
+        }
+        return;
+      }
+
+      synchronized (lock) {
+        inHand = 0;
+        batcherPending = batcher.getPendingCount();
+        // a flush is complete once the queue ahead of it has drained too
+        if (p == null)
+          flushRequested = false;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void checkFailure() throws MessagingException
+  {
+    if (failure == null)
+      return;
+    if (failure instanceof MessagingException)
+      throw (MessagingException) failure;
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    if (failure instanceof Error)
+      throw (Error) failure;
+    throw new RuntimeException(failure);
+  }
+
+  private void waitQuietly()
+  {
+    try {
+      lock.wait();
+    } catch (InterruptedException ex) {
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package org.sysmgr.imapmigr;
+
+import javax.mail.MessagingException;
+
+/**
+ * Somewhere to hand messages that are to be APPENDed to a destination
+ * folder.  Messages are acknowledged to the sink's listener in the order they
+ * were added.
+ */
+public interface AppendSink
+{
+  void add(AppendBatcher.Pending p) throws MessagingException;
+
+  /**
+   * Returns once everything added so far has been acknowledged.
+   */
+  void flush() throws MessagingException;
+
+  /**
+   * @return Messages added but not yet acknowledged.
+   */
+  int getPendingCount();
+
+  /**
+   * Throw away anything not yet sent and release any resources.
+   */
+  void discard();
+}
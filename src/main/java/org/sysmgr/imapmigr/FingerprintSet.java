@@ -0,0 +1,258 @@
+package org.sysmgr.imapmigr;
+
+/**
+ * Set of 128-bit message fingerprints (MD5 digests), stored as pairs of longs
+ * in a single open-addressed table.  There is no per-entry object, so a
+ * million fingerprints cost about 32MB at worst instead of the several
+ * hundred a HashSet of hex Strings needs, and neither lookups nor inserts
+ * allocate.
+ *
+ * Not thread-safe.
+ */
+public class FingerprintSet
+{
+  private static final int MIN_SLOTS = 16;
+
+  /*
+   * Slot i lives at table[2i] (high 64 bits) and table[2i+1] (low 64 bits).
+   * An all-zero slot is empty, so the all-zero fingerprint is tracked on the
+   * side.
+   */
+  private long[] table;
+  private int mask;
+  private int size = 0;
+  private boolean hasZero = false;
+
+  public FingerprintSet()
+  {
+    this(MIN_SLOTS);
+  }
+
+  /**
+   * @param expected Number of entries to size the table for up front.
+   */
+  public FingerprintSet(int expected)
+  {
+    int slots = MIN_SLOTS;
+    while (slots * 3 < expected * 4)
+      slots <<= 1;
+    table = new long[slots * 2];
+    mask = slots - 1;
+  }
+
+  public FingerprintSet(FingerprintSet other)
+  {
+    table = other.table.clone();
+    mask = other.mask;
+    size = other.size;
+    hasZero = other.hasZero;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean contains(long hi, long lo)
+  {
+    if (hi == 0 && lo == 0)
+      return hasZero;
+    int slot = slotFor(hi, lo);
+    for (;;) {
+      long h = table[slot * 2];
+      long l = table[slot * 2 + 1];
+      if (h == hi && l == lo)
+        return true;
+      if (h == 0 && l == 0)
+        return false;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * @return true if the fingerprint was not already present.
+   */
+  public boolean add(long hi, long lo)
+  {
+    if (hi == 0 && lo == 0) {
+      if (hasZero)
+        return false;
+      hasZero = true;
+      size++;
+      return true;
+    }
+    if (insert(table, mask, hi, lo)) {
+      size++;
+      // keep the load factor at or below 3/4
+      if (size * 4 > (mask + 1) * 3)
+        grow();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the fingerprint was present.
+   */
+  public boolean remove(long hi, long lo)
+  {
+    if (hi == 0 && lo == 0) {
+      if (!hasZero)
+        return false;
+      hasZero = false;
+      size--;
+      return true;
+    }
+    int hole = slotFor(hi, lo);
+    for (;;) {
+      long h = table[hole * 2];
+      long l = table[hole * 2 + 1];
+      if (h == hi && l == lo)
+        break;
+      if (h == 0 && l == 0)
+        return false;
+      hole = (hole + 1) & mask;
+    }
+    // Shift back whatever later in the probe run may now sit in the hole,
+    //   so that lookups never stop early at it.
+    int slot = hole;
+    for (;;) {
+      slot = (slot + 1) & mask;
+      long h = table[slot * 2];
+      long l = table[slot * 2 + 1];
+      if (h == 0 && l == 0)
+        break;
+      int home = slotFor(h, l);
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        table[hole * 2] = h;
+        table[hole * 2 + 1] = l;
+        hole = slot;
+      }
+    }
+    table[hole * 2] = 0;
+    table[hole * 2 + 1] = 0;
+    size--;
+    return true;
+  }
+
+  public boolean contains(byte[] digest)
+  {
+    return contains(readLong(digest, 0), readLong(digest, 8));
+  }
+
+  public boolean add(byte[] digest)
+  {
+    return add(readLong(digest, 0), readLong(digest, 8));
+  }
+
+  /**
+   * @param hex Fingerprint as 32 hex digits, as stored in the MTS.
+   */
+  public boolean contains(String hex)
+  {
+    checkHex(hex);
+    return contains(parseHex(hex, 0), parseHex(hex, 16));
+  }
+
+  /**
+   * @param hex Fingerprint as 32 hex digits, as stored in the MTS.
+   */
+  public boolean add(String hex)
+  {
+    checkHex(hex);
+    return add(parseHex(hex, 0), parseHex(hex, 16));
+  }
+
+  /**
+   * @param hex Fingerprint as 32 hex digits, as stored in the MTS.
+   */
+  public boolean remove(String hex)
+  {
+    checkHex(hex);
+    return remove(parseHex(hex, 0), parseHex(hex, 16));
+  }
+
+  /**
+   * @return true if the string is something add(String) will accept.
+   */
+  public static boolean isFingerprint(String hex)
+  {
+    if (hex == null || hex.length() != 32)
+      return false;
+    for (int i = 0; i < 32; i++) {
+      if (Character.digit(hex.charAt(i), 16) < 0)
+        return false;
+    }
+    return true;
+  }
+
+  private static void checkHex(String hex)
+  {
+    if (hex.length() != 32)
+      throw new IllegalArgumentException("Not a 128-bit hex fingerprint: "
+        + hex);
+  }
+
+  private static long parseHex(String hex, int off)
+  {
+    long v = 0;
+    for (int i = off; i < off + 16; i++) {
+      int d = Character.digit(hex.charAt(i), 16);
+      if (d < 0)
+        throw new IllegalArgumentException("Not a 128-bit hex fingerprint: "
+          + hex);
+      v = (v << 4) | d;
+    }
+    return v;
+  }
+
+  private static long readLong(byte[] b, int off)
+  {
+    long v = 0;
+    for (int i = off; i < off + 8; i++)
+      v = (v << 8) | (b[i] & 0xff);
+    return v;
+  }
+
+  private int slotFor(long hi, long lo)
+  {
+    return slotFor(hi, lo, mask);
+  }
+
+  private static int slotFor(long hi, long lo, int mask)
+  {
+    // MD5 output is already well mixed, so folding it down is enough
+    long x = hi ^ lo;
+    return (int) (x ^ (x >>> 32)) & mask;
+  }
+
+  private static boolean insert(long[] table, int mask, long hi, long lo)
+  {
+    int slot = slotFor(hi, lo, mask);
+    for (;;) {
+      long h = table[slot * 2];
+      long l = table[slot * 2 + 1];
+      if (h == hi && l == lo)
+        return false;
+      if (h == 0 && l == 0) {
+        table[slot * 2] = hi;
+        table[slot * 2 + 1] = lo;
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void grow()
+  {
+    int slots = (mask + 1) * 2;
+    long[] nt = new long[slots * 2];
+    int nmask = slots - 1;
+    for (int i = 0; i < table.length; i += 2) {
+      if (table[i] != 0 || table[i + 1] != 0)
+        insert(nt, nmask, table[i], table[i + 1]);
+    }
+    table = nt;
+    mask = nmask;
+  }
+}
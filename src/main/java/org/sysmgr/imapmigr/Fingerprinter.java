@@ -0,0 +1,205 @@
+package org.sysmgr.imapmigr;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Computes MD5 fingerprints from fields appended one at a time, reusing the
+ * same digest, encoder and buffers for every message instead of building a
+ * String, encoding it and looking up a MessageDigest each time.  Use get() to
+ * obtain the instance belonging to the current thread.
+ *
+ * The bytes fed to MD5 are exactly those String.getBytes() would produce for
+ * the equivalent concatenated String in the configured charset, which
+ * defaults to the platform charset that fingerprints have always been
+ * computed with.  Changing the charset changes the fingerprint of any
+ * non-ASCII message, so only do it to match the platform older runs used.
+ */
+public class Fingerprinter
+{
+  private static volatile Charset charset = Charset.defaultCharset();
+
+  private static final ThreadLocal<Fingerprinter> local
+    = new ThreadLocal<Fingerprinter>() {
+    @Override
+    protected Fingerprinter initialValue()
+    {
+      return new Fingerprinter();
+    }
+  };
+
+  public static Fingerprinter get()
+  {
+    Fingerprinter f = local.get();
+    if (f.encoder.charset() != charset)
+      f.setEncoder(charset);
+    return f;
+  }
+
+  public static void setCharset(Charset cs)
+  {
+    charset = cs;
+  }
+
+  private MessageDigest md5;
+  private CharsetEncoder encoder;
+  private char[] chars = new char[256];
+  private CharBuffer cb = CharBuffer.wrap(chars);
+  private ByteBuffer bb = ByteBuffer.allocate(512);
+  private byte[] digest = new byte[16];
+  private int len = 0;
+
+  private Fingerprinter()
+  {
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException("Could not use MD5 hash function.", ex);
+    }
+    setEncoder(charset);
+  }
+
+  private void setEncoder(Charset cs)
+  {
+    // the same error handling String.getBytes() uses
+    encoder = cs.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  public Fingerprinter reset()
+  {
+    len = 0;
+    return this;
+  }
+
+  public Fingerprinter append(char c)
+  {
+    ensure(1);
+    chars[len++] = c;
+    return this;
+  }
+
+  public Fingerprinter append(String s)
+  {
+    int n = s.length();
+    ensure(n);
+    s.getChars(0, n, chars, len);
+    len += n;
+    return this;
+  }
+
+  public Fingerprinter append(long v)
+  {
+    if (v == Long.MIN_VALUE)
+      return append(Long.toString(v));
+    if (v < 0) {
+      append('-');
+      v = -v;
+    }
+    int digits = 1;
+    for (long t = v; t >= 10; t /= 10)
+      digits++;
+    ensure(digits);
+    for (int i = len + digits - 1; i >= len; i--) {
+      chars[i] = (char) ('0' + (v % 10));
+      v /= 10;
+    }
+    len += digits;
+    return this;
+  }
+
+  /**
+   * Append s.trim().toLowerCase(), without the intermediate Strings when s is
+   * plain ASCII and the default locale lowercases ASCII the ordinary way.
+   */
+  public Fingerprinter appendTrimLower(String s)
+  {
+    int start = 0;
+    int end = s.length();
+    while (start < end && s.charAt(start) <= ' ')
+      start++;
+    while (end > start && s.charAt(end - 1) <= ' ')
+      end--;
+
+    if (!asciiLocale())
+      return append(s.trim().toLowerCase());
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i) >= 0x80)
+        return append(s.trim().toLowerCase());
+    }
+
+    ensure(end - start);
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c >= 'A' && c <= 'Z')
+        c += 'a' - 'A';
+      chars[len++] = c;
+    }
+    return this;
+  }
+
+  /**
+   * Digest everything appended since the last reset().
+   *
+   * @return The 16 byte MD5, in a buffer that is reused by the next call.
+   */
+  public byte[] digest()
+  {
+    md5.reset();
+    encoder.reset();
+    cb.clear();
+    cb.limit(len);
+    bb.clear();
+    for (;;) {
+      CoderResult cr = encoder.encode(cb, bb, true);
+      if (cr.isOverflow()) {
+        drain();
+        continue;
+      }
+      break;
+    }
+    while (encoder.flush(bb).isOverflow())
+      drain();
+    drain();
+    try {
+      md5.digest(digest, 0, digest.length);
+    } catch (java.security.DigestException ex) {
+      throw new RuntimeException("Could not complete MD5 digest.", ex);
+    }
+    return digest;
+  }
+
+  private void drain()
+  {
+    md5.update(bb.array(), 0, bb.position());
+    bb.clear();
+  }
+
+  private void ensure(int extra)
+  {
+    if (len + extra <= chars.length)
+      return;
+    int n = chars.length * 2;
+    while (n < len + extra)
+      n *= 2;
+    char[] nc = new char[n];
+    System.arraycopy(chars, 0, nc, 0, len);
+    chars = nc;
+    cb = CharBuffer.wrap(chars);
+  }
+
+  private static boolean asciiLocale()
+  {
+    // these locales lowercase 'I' (and friends) specially
+    String lang = Locale.getDefault().getLanguage();
+    return !(lang.equals("tr") || lang.equals("az") || lang.equals("lt"));
+  }
+}
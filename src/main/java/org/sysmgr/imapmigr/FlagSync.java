@@ -0,0 +1,207 @@
+package org.sysmgr.imapmigr;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.CommandFailedException;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.mail.MessagingException;
+
+/**
+ * Flag changes on already-copied source messages, found with CONDSTORE
+ * (RFC 4551) and applied to their copies with one UID STORE per distinct set
+ * of flags.
+ *
+ * JavaMail 1.4.3 knows nothing of MODSEQ: a FETCH response carrying one
+ * loses whatever items follow it.  So the FETCH here is parsed from the raw
+ * response text, and it must be done on a connection used for nothing else,
+ * as a server turns CONDSTORE on for good once CHANGEDSINCE is used.
+ */
+public class FlagSync
+{
+  /**
+   * Destination UID ranges per STORE, to keep commands a sensible length.
+   */
+  private static final int MAX_RANGES = 500;
+
+  private static final Pattern STATUS_ITEM = Pattern.compile(
+    "(UIDVALIDITY|HIGHESTMODSEQ) (\\d+)", Pattern.CASE_INSENSITIVE);
+  private static final Pattern FETCH_UID = Pattern.compile(
+    "[( ]UID (\\d+)", Pattern.CASE_INSENSITIVE);
+  private static final Pattern FETCH_FLAGS = Pattern.compile(
+    "[( ]FLAGS \\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+
+  /** Source UIDs by the flag list they now have, e.g. "\\Seen $Work". */
+  private Map<String, UidSet> changes = new HashMap<String, UidSet>();
+  private int size = 0;
+
+  private FlagSync()
+  {
+  }
+
+  /**
+   * STATUS a folder for its UIDVALIDITY and HIGHESTMODSEQ.  The folder
+   * should not be the one selected on the store.
+   *
+   * @return The two, in that order; 0 for either the server didn't send.
+   */
+  public static long[] status(IMAPStore store, String folder)
+    throws MessagingException
+  {
+    final Argument args = new Argument();
+    args.writeString(BASE64MailboxEncoder.encode(folder));
+    args.writeAtom("(UIDVALIDITY HIGHESTMODSEQ)");
+    IMAPFolder root = (IMAPFolder) store.getDefaultFolder();
+    return (long[]) root.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException
+      {
+        long[] status = new long[2];
+        Response[] r = p.command("STATUS", args);
+        for (int i = 0; i < r.length - 1; i++) {
+          String line = r[i].toString();
+          if (!r[i].isUnTagged() || !line.regionMatches(true, 2, "STATUS ", 0,
+              7))
+            continue;
+          // items only, not the mailbox name
+          Matcher m = STATUS_ITEM.matcher(line.substring(
+            line.lastIndexOf('(')));
+          while (m.find()) {
+            int item = m.group(1).equalsIgnoreCase("UIDVALIDITY") ? 0 : 1;
+            status[item] = Long.parseLong(m.group(2));
+          }
+          r[i] = null;
+        }
+        p.notifyResponseHandlers(r);
+        p.handleResult(r[r.length - 1]);
+        return status;
+      }
+    });
+  }
+
+  /**
+   * UID FETCH the flags of every message in an open folder whose MODSEQ is
+   * above the given one.
+   */
+  public static FlagSync changedSince(IMAPFolder srcf, final long modSeq)
+    throws MessagingException
+  {
+    final FlagSync fs = new FlagSync();
+    srcf.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException
+      {
+        Argument args = new Argument();
+        args.writeAtom("1:* (UID FLAGS) (CHANGEDSINCE " + modSeq + ")");
+        Response[] r = p.command("UID FETCH", args);
+        for (int i = 0; i < r.length - 1; i++) {
+          String line = r[i].toString();
+          if (!r[i].isUnTagged() || line.toUpperCase().indexOf(" FETCH (") < 0)
+            continue;
+          Matcher u = FETCH_UID.matcher(line);
+          Matcher f = FETCH_FLAGS.matcher(line);
+          if (u.find() && f.find())
+            fs.add(Long.parseLong(u.group(1)), f.group(1));
+          // JavaMail's idea of the message is wrong anyway, see above
+          r[i] = null;
+        }
+        p.notifyResponseHandlers(r);
+        p.handleResult(r[r.length - 1]);
+        return null;
+      }
+    });
+    return fs;
+  }
+
+  /**
+   * Messages whose flags changed.
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  private void add(long uid, String flags)
+  {
+    List<String> l = new ArrayList<String>();
+    for (String flag : flags.trim().split("\\s+")) {
+      // \Recent cannot be set by a client
+      if (flag.length() > 0 && !flag.equalsIgnoreCase("\\Recent"))
+        l.add(flag);
+    }
+    String[] sorted = l.toArray(new String[l.size()]);
+    Arrays.sort(sorted);
+    StringBuffer key = new StringBuffer();
+    for (String flag : sorted)
+      key.append(key.length() == 0 ? "" : " ").append(flag);
+    UidSet uids = changes.get(key.toString());
+    if (uids == null) {
+      uids = new UidSet();
+      changes.put(key.toString(), uids);
+    }
+    long before = uids.size();
+    uids.add(uid);
+    size += uids.size() - before;
+  }
+
+  /**
+   * Give the copies in an open destination folder the flags their source
+   * messages now have.  A set of flags the destination refuses is skipped.
+   *
+   * @param map Where the source messages were copied to.
+   * @return How many copies were updated; messages not in the map are not.
+   */
+  public int apply(IMAPFolder dstf, UidMap map) throws MessagingException
+  {
+    int stored = 0;
+    for (Map.Entry<String, UidSet> e : changes.entrySet()) {
+      UidSet src = e.getValue();
+      long[] dst = new long[(int) src.size()];
+      int n = 0;
+      for (int range = 0; range < src.getRangeCount(); range++) {
+        for (long u = src.getLow(range); u <= src.getHigh(range); u++) {
+          long d = map.get(u);
+          if (d >= 0)
+            dst[n++] = d;
+        }
+      }
+      for (UidSet part : UidSet.of(dst, n).split(MAX_RANGES)) {
+        if (store(dstf, part.toString(), e.getKey()))
+          stored += part.size();
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * @return false if the server said NO.
+   */
+  private static boolean store(IMAPFolder dstf, String uids, String flags)
+    throws MessagingException
+  {
+    final Argument args = new Argument();
+    args.writeAtom(uids + " FLAGS.SILENT (" + flags + ")");
+    Boolean ok = (Boolean) dstf.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException
+      {
+        Response[] r = p.command("UID STORE", args);
+        p.notifyResponseHandlers(r);
+        try {
+          p.handleResult(r[r.length - 1]);
+        } catch (CommandFailedException ex) {
+          return Boolean.FALSE;
+        }
+        return Boolean.TRUE;
+      }
+    });
+    return ok.booleanValue();
+  }
+}
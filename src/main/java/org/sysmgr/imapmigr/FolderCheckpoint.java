@@ -0,0 +1,28 @@
+package org.sysmgr.imapmigr;
+
+/**
+ * How far a source folder has been migrated: every message with a UID up to
+ * and including highUid has been either copied or found to be copied
+ * already, as long as the folder still has the same UIDVALIDITY.
+ *
+ * highestModSeq is the folder's HIGHESTMODSEQ when its flags were last
+ * synchronised, 0 if they never have been.
+ */
+public class FolderCheckpoint
+{
+  public long uidValidity;
+  public long highUid;
+  public long highestModSeq;
+
+  public FolderCheckpoint(long uidValidity, long highUid)
+  {
+    this(uidValidity, highUid, 0);
+  }
+
+  public FolderCheckpoint(long uidValidity, long highUid, long highestModSeq)
+  {
+    this.uidValidity = uidValidity;
+    this.highUid = highUid;
+    this.highestModSeq = highestModSeq;
+  }
+}
@@ -0,0 +1,153 @@
+package org.sysmgr.imapmigr;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.ListInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.mail.MessagingException;
+
+/**
+ * An account's whole folder hierarchy, from a single LIST "" "*", so that
+ * walking it or asking whether a folder exists costs no round trips.  A
+ * folder the server didn't list but which has listed children is in the tree
+ * as if it were \Noselect.
+ */
+public class FolderTree
+{
+  public static class Node
+  {
+    /** Full name; "" for the root. */
+    public String name;
+    public char separator;
+    public boolean canOpen;
+    public boolean hasInferiors;
+    /** False for a parent only implied by its children's names. */
+    public boolean listed;
+    public List<Node> children = new ArrayList<Node>();
+
+    Node(String name, char separator)
+    {
+      this.name = name;
+      this.separator = separator;
+    }
+
+    /**
+     * The last component of the name.
+     */
+    public String getName()
+    {
+      int i = separator == '\0' ? -1 : name.lastIndexOf(separator);
+      return i < 0 ? name : name.substring(i + 1);
+    }
+  }
+
+  private Node root;
+  private char separator;
+  private Map<String, Node> nodes = new HashMap<String, Node>();
+
+  public static FolderTree list(IMAPStore store) throws MessagingException
+  {
+    IMAPFolder root = (IMAPFolder) store.getDefaultFolder();
+    ListInfo[] li = (ListInfo[]) root.doCommand(
+      new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException
+      {
+        return p.list("", "*");
+      }
+    });
+
+    char sep = '\0';
+    if (li != null) {
+      for (ListInfo l : li) {
+        if (l.separator != '\0') {
+          sep = l.separator;
+          break;
+        }
+      }
+    }
+    if (sep == '\0') {
+      // nothing listed had one; the namespace may still be hierarchical
+      sep = root.getSeparator();
+    }
+
+    FolderTree t = new FolderTree(sep);
+    if (li != null) {
+      for (ListInfo l : li) {
+        if (l.name.length() == 0)
+          continue;
+        Node n = t.node(l.name, l.separator);
+        n.canOpen = l.canOpen;
+        n.hasInferiors = l.hasInferiors;
+        n.listed = true;
+      }
+    }
+    return t;
+  }
+
+  private FolderTree(char separator)
+  {
+    this.separator = separator;
+    root = new Node("", separator);
+    root.listed = true;
+    root.hasInferiors = true;
+  }
+
+  public Node getRoot()
+  {
+    return root;
+  }
+
+  /**
+   * The hierarchy separator, '\0' if the server has none.
+   */
+  public char getSeparator()
+  {
+    return separator;
+  }
+
+  public boolean contains(String name)
+  {
+    return nodes.containsKey(key(name));
+  }
+
+  /**
+   * Note a folder created since the LIST.
+   */
+  public void add(String name, boolean canOpen)
+  {
+    Node n = node(name, separator);
+    n.canOpen = canOpen;
+    n.hasInferiors = true;
+    n.listed = true;
+  }
+
+  /**
+   * The node for a name, adding it, and any parents it implies, if new.
+   */
+  private Node node(String name, char sep)
+  {
+    Node n = nodes.get(key(name));
+    if (n != null)
+      return n;
+    n = new Node(name, sep);
+    int i = sep == '\0' ? -1 : name.lastIndexOf(sep);
+    Node parent = i <= 0 ? root : node(name.substring(0, i), sep);
+    parent.hasInferiors = true;
+    parent.children.add(n);
+    nodes.put(key(name), n);
+    return n;
+  }
+
+  /**
+   * INBOX is the one name that is case-insensitive.
+   */
+  private static String key(String name)
+  {
+    return name.equalsIgnoreCase("INBOX") ? "INBOX" : name;
+  }
+}
@@ -1,17 +1,25 @@
 package org.sysmgr.imapmigr;
 
 import com.google.gson.JsonObject;
+import com.sun.mail.iap.CommandFailedException;
+import com.sun.mail.iap.ProtocolException;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import java.io.IOException;
 import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
-import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.FetchProfile;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.UIDFolder;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 
@@ -21,10 +29,12 @@ public class IMAPSync implements Runnable
   {
     private boolean doProxy = false;
     private String hostname;
+    private int port = -1;
     private String username;
     private String password;
     private String proxyusername;
     private boolean ssl = false;
+    private boolean reuse = false;
 
     /**
      * Regular connection using the user's own username and password.
@@ -65,19 +75,42 @@ public class IMAPSync implements Runnable
       this.ssl = ssl;
     }
 
+    /**
+     * @param port Server port, or -1 for the usual one.
+     */
+    public void setPort(int port)
+    {
+      this.port = port;
+    }
+
+    /**
+     * Keep PROXYAUTH connections once an account is done with them and
+     * PROXYAUTH them to the next account.  Only for servers that accept
+     * PROXYAUTH more than once per connection.
+     */
+    public void setReuse(boolean reuse)
+    {
+      this.reuse = reuse;
+    }
+
     protected Properties getSessionProperties()
     {
       Properties p = new Properties();
       if (doProxy) {
+        // the proxy user itself is set by StorePool, per store
         p.setProperty("mail." + getStoreType() + ".auth.login.disable", "true");
         p.setProperty("mail." + getStoreType() + ".auth.plain.disable", "true");
-        p.setProperty("mail." + getStoreType() + ".proxyauth.user", proxyusername);
       }
       p.setProperty("mail." + getStoreType() + ".connectiontimeout", "45000");
       p.setProperty("mail." + getStoreType() + ".timeout", "45000");
       return p;
     }
 
+    public String getHostname()
+    {
+      return hostname;
+    }
+
     protected String getStoreType()
     {
       if (ssl)
@@ -86,44 +119,154 @@ public class IMAPSync implements Runnable
         return "imap";
     }
 
+    private StorePool getPool()
+    {
+      return StorePool.get(getStoreType(), hostname, port, username, password,
+        getSessionProperties());
+    }
+
     protected IMAPStore connect()
     {
+      long begin = System.nanoTime();
       try {
-        Session session = Session.getInstance(getSessionProperties());
+        if (doProxy)
+          return getPool().acquire(proxyusername, reuse);
+        Session session = StorePool.getSession(getSessionProperties());
         IMAPStore imap = (IMAPStore) session.getStore(getStoreType());
-        imap.connect(hostname, username, password);
+        imap.connect(hostname, port, username, password);
         return imap;
       } catch (MessagingException ex) {
         throw new RuntimeException("Could not connect to IMAP Server: " + ex.getMessage(), ex);
+      } finally {
+        Metrics.record(Metrics.CONNECT, begin);
       }
     }
+
+    /**
+     * Done with a store from connect(), with all of its folders closed.
+     */
+    protected void release(IMAPStore store)
+    {
+      if (doProxy && reuse)
+        getPool().release(store);
+      else
+        Utils.closeQuietly(store);
+    }
+  }
+
+  /**
+   * Tunables for a sync session.  IMAPSyncAction fills these in from the
+   * properties file; the defaults here apply to anything left unset.
+   */
+  public static class Settings
+  {
+    /**
+     * Number of messages whose envelope, size, date, flags and UID are pulled
+     * down in a single FETCH before we start fingerprinting them.
+     */
+    public int prefetchWindow = 250;
+
+    /**
+     * Limits on how many messages, and how many bytes of message, go to the
+     * destination in one batch of APPENDs.
+     */
+    public int appendMaxCount = 16;
+    public long appendMaxBytes = 4 * 1024 * 1024;
+
+    /**
+     * Keep a UIDVALIDITY/highest-UID checkpoint per source folder in the MTS
+     * and on later runs only look at messages newer than it.
+     */
+    public boolean checkpoints = false;
+
+    /**
+     * Fetch bodies from the source on the sync thread while a second thread
+     * appends to the destination, with up to pipelineMaxBytes of message
+     * waiting in between.
+     */
+    public boolean pipeline = false;
+    public long pipelineMaxBytes = 8 * 1024 * 1024;
+
+    /**
+     * How many source/destination connection pairs an account may use to
+     * copy folders in parallel.
+     */
+    public int folderConnections = 1;
+
+    /**
+     * Copy each message's bytes from the source FETCH to the destination
+     * APPEND rawChunkSize bytes at a time, instead of having JavaMail read
+     * and serialise the whole message.  With the pipeline on, bodies are then
+     * read by the appending thread rather than ahead of time.
+     */
+    public boolean rawTransfer = false;
+    public int rawChunkSize = 64 * 1024;
+
+    /**
+     * Whether to index each destination folder before copying to it and
+     * skip, recording them in the MTS, source messages it already has.  AUTO
+     * does so only for accounts the MTS has no record of at all.
+     */
+    public static enum Reconcile
+    {
+      NO, YES, AUTO
+    }
+
+    public Reconcile reconcile = Reconcile.NO;
+
+    /**
+     * How many times in a row to reconnect and carry on after a transient
+     * error before giving up on the account, waiting retryBackoff ms before
+     * the first attempt and twice as long before each one after, up to
+     * retryMaxBackoff.  The count starts again once a folder makes progress.
+     */
+    public int retries = 5;
+    public long retryBackoff = 1000;
+    public long retryMaxBackoff = 60000;
+
+    /**
+     * Before copying, bring the flags of messages copied on earlier runs up
+     * to date, if the source has CONDSTORE.  Needs the destination UIDs, so
+     * only messages copied to a destination with UIDPLUS are kept in step.
+     */
+    public boolean flagSync = false;
   }
 
   private String canonicalUsername;
+  private Settings settings;
   private ServerDetails sdsrc;
   private ServerDetails sddst;
   private MigrationTrackingStore mts;
   private final CountDownLatch latch = new CountDownLatch(1);
-  private IMAPStore src;
-  private IMAPStore dst;
-  private boolean keepRunning = true;
-  int countSkipped = 0;
-  int countCopied = 0;
+  private final Lane main = new Lane();
+  private volatile boolean keepRunning = true;
+  final AtomicInteger countSkipped = new AtomicInteger();
+  final AtomicInteger countCopied = new AtomicInteger();
   private String errorSummary = null;
-  private Set<String> mtsCache;
+  private FingerprintSet mtsCache;
   private boolean wasDone = false;
+  private boolean mtsWasEmpty;
+  private AdaptiveLimiter srcLimiter;
+  private AdaptiveLimiter dstLimiter;
 
   public IMAPSync(String canonicalUsername, MigrationTrackingStore mts,
     ServerDetails from, ServerDetails to)
   {
+    this(canonicalUsername, mts, from, to, new Settings());
+  }
+
+  public IMAPSync(String canonicalUsername, MigrationTrackingStore mts,
+    ServerDetails from, ServerDetails to, Settings settings)
+  {
+    this.settings = settings;
     this.mts = mts;
     this.mtsCache = mts.getMigratedForUser(canonicalUsername);
+    this.mtsWasEmpty = mtsCache.size() == 0;
     this.sdsrc = from;
     this.sddst = to;
     this.canonicalUsername = canonicalUsername;
     //log = new PrintWriter(logTo, true);
-    src = sdsrc.connect();
-    dst = sddst.connect();
+    main.connect();
   }
 
   private void log(String msg)
@@ -144,12 +287,12 @@ public class IMAPSync implements Runnable
 
   public int getCountSkipped()
   {
-    return countSkipped;
+    return countSkipped.get();
   }
 
   public int getCountCopied()
   {
-    return countCopied;
+    return countCopied.get();
   }
 
   public String getErrorSummary()
@@ -167,6 +310,17 @@ public class IMAPSync implements Runnable
     keepRunning = false;
   }
 
+  /**
+   * Report FETCH latency to the source's limiter and APPEND latency to the
+   * destination's.  Either may be null.
+   */
+  public void setLimiters(AdaptiveLimiter srcLimiter,
+    AdaptiveLimiter dstLimiter)
+  {
+    this.srcLimiter = srcLimiter;
+    this.dstLimiter = dstLimiter;
+  }
+
   public void run()
   {
     if (latch.getCount() == 0)
@@ -183,159 +337,852 @@ public class IMAPSync implements Runnable
         + ex.getMessage());
       errorSummary = "IMAP Sync Failed (" + ex.getClass().getName() + " @ "
         + new Date().toString() + "): " + ex.getMessage();
+      main.close();
       throw new RuntimeException(errorSummary, ex);
     } finally {
+      try {
+        // anything appended before a failure still needs recording
+        mts.flushMigrations(canonicalUsername);
+      } catch (RuntimeException ex) {
+        log("ERROR: Could not flush migration records: " + ex.getMessage());
+      }
       latch.countDown();
     }
   }
 
   private void mirror() throws MessagingException
   {
-    mirrorDir((IMAPFolder) src.getDefaultFolder(),
-      (IMAPFolder) dst.getDefaultFolder());
+    // Create the destination folder tree first, parents before children,
+    //   then copy the folders' mail, possibly several at once.  Both trees
+    //   come from one LIST each.
+    LinkedList<FolderJob> jobs = new LinkedList<FolderJob>();
+    for (int attempt = 0;; attempt++) {
+      Throwable failure;
+      try {
+        main.connect();
+        FolderTree srcTree = FolderTree.list(main.src);
+        FolderTree dstTree = FolderTree.list(main.dst);
+        mirrorDir(srcTree.getRoot(), "", dstTree, jobs);
+        break;
+      } catch (MessagingException ex) {
+        failure = ex;
+      } catch (RuntimeException ex) {
+        failure = ex;
+      }
+      // the walk is cheap to redo, and creates nothing twice
+      jobs.clear();
+      if (!recover(main, failure, attempt))
+        rethrow(failure);
+    }
+
+    if (settings.flagSync) {
+      for (int attempt = 0;; attempt++) {
+        Throwable failure;
+        try {
+          main.connect();
+          syncFlags(jobs);
+          break;
+        } catch (MessagingException ex) {
+          failure = ex;
+        } catch (RuntimeException ex) {
+          failure = ex;
+        }
+        // folders already done have their checkpoint moved on
+        if (!recover(main, failure, attempt))
+          rethrow(failure);
+      }
+    }
+
+    int lanes = Math.min(settings.folderConnections, jobs.size());
+    if (lanes <= 1) {
+      FolderJob job;
+      while ((job = nextJob(jobs)) != null)
+        copyFolder(main, job);
+    } else {
+      copyFolders(jobs, lanes);
+    }
 
     if (keepRunning)
       wasDone = true;
 
-    Utils.closeQuietly(src);
-    Utils.closeQuietly(dst);
+    main.release();
   }
 
-  private void mirrorDir(IMAPFolder srcf, IMAPFolder dstf)
-    throws MessagingException
+  /**
+   * A source and destination connection that folders are copied over.
+   * Either store is null after close() until the next connect().
+   */
+  private class Lane
   {
-    if (!keepRunning) {
-      log("INFO: Terminating early due to shutdown request.");
-      return;
+    IMAPStore src;
+    IMAPStore dst;
+
+    void connect()
+    {
+      if (src == null)
+        src = sdsrc.connect();
+      if (dst == null)
+        dst = sddst.connect();
     }
-    IMAPFolder odstf = dstf;
 
-    if (srcf.getFullName() != null && srcf.getFullName().trim().length() > 1) {
-      // not the default root folder (empty name), so...
+    /**
+     * Done with the stores, which may go back to a pool.
+     */
+    void release()
+    {
+      if (src != null)
+        sdsrc.release(src);
+      if (dst != null)
+        sddst.release(dst);
+      src = null;
+      dst = null;
+    }
 
-      // create destination directory if not extant
-      try {
-        if (!dstf.exists()) {
-          if (dstf.create(srcf.getType())) {
-            log("INFO: Created destination directory '"
-              + dstf.getFullName() + "'");
-          } else {
-            log("WARNING: Could not create destination directory '"
-              + dstf.getFullName() + "', but wanted to!");
-            // NB: exception will be thrown when we try to open, so for now
-            //   just WARN that we THOUGHT we wanted to create but couldn't.
+    /**
+     * Drop the stores after a failure.
+     */
+    void close()
+    {
+      Utils.closeQuietly(src);
+      Utils.closeQuietly(dst);
+      src = null;
+      dst = null;
+    }
+  }
+
+  /**
+   * After a failure on a lane: if the error is transient and we have not
+   * run out of attempts, wait out the backoff and drop the lane's stores so
+   * that the next connect() makes new ones.
+   *
+   * @param attempt Failures in a row before this one.
+   * @return false if the error should be rethrown instead.
+   */
+  private boolean recover(Lane lane, Throwable failure, int attempt)
+  {
+    if (!keepRunning || attempt >= settings.retries
+        || !IMAPUtils.isTransient(failure))
+      return false;
+    long delay = Math.min(settings.retryMaxBackoff,
+      settings.retryBackoff << Math.min(attempt, 20));
+    log("WARNING: Transient error, reconnecting in " + delay + "ms (attempt "
+      + (attempt + 1) + " of " + settings.retries + "): "
+      + failure.getClass().getName() + ": " + failure.getMessage());
+    lane.close();
+    long until = System.currentTimeMillis() + delay;
+    for (long left = delay; left > 0 && keepRunning;
+        left = until - System.currentTimeMillis())
+      Utils.sleep((int) Math.min(left, 1000));
+    return keepRunning;
+  }
+
+  private static void rethrow(Throwable t) throws MessagingException
+  {
+    if (t instanceof MessagingException)
+      throw (MessagingException) t;
+    if (t instanceof RuntimeException)
+      throw (RuntimeException) t;
+    if (t instanceof Error)
+      throw (Error) t;
+    throw new RuntimeException(t);
+  }
+
+  private static class FolderJob
+  {
+    String srcName;
+    String dstName;
+    /**
+     * Where an earlier attempt at the folder got to: every source message up
+     * to resumeUid was skipped or acknowledged by the destination.
+     */
+    long uidValidity = -1;
+    long resumeUid = 0;
+    /**
+     * HIGHESTMODSEQ of the source folder, under modSeqUidValidity, from
+     * before anything was copied; what the checkpoint should record.
+     */
+    long modSeqUidValidity = -1;
+    long highestModSeq = 0;
+
+    FolderJob(String srcName, String dstName)
+    {
+      this.srcName = srcName;
+      this.dstName = dstName;
+    }
+  }
+
+  private static class FolderStats
+  {
+    /** Counted by the sink, possibly on its own thread. */
+    final AtomicInteger copied = new AtomicInteger();
+    int skipped = 0;
+    int reconciled = 0;
+    /**
+     * Fingerprints claimed for messages handed to the sink and not yet
+     * acknowledged, in order.
+     */
+    final LinkedList<String> unacked = new LinkedList<String>();
+    /**
+     * Where acknowledged messages went, not yet recorded in the MTS.
+     */
+    UidMap uidMap;
+  }
+
+  private FolderJob nextJob(LinkedList<FolderJob> jobs)
+  {
+    synchronized (jobs) {
+      if (!keepRunning) {
+        if (!jobs.isEmpty()) {
+          log("INFO: Terminating early due to shutdown request.");
+          jobs.clear();
+        }
+        return null;
+      }
+      if (jobs.isEmpty())
+        return null;
+      return jobs.removeFirst();
+    }
+  }
+
+  /**
+   * Copy folders on up to the given number of connection pairs at once.  The
+   * session's own pair is one of them; the rest are opened here and closed
+   * again when the queue is empty.  If a folder fails the remaining lanes stop
+   * taking new folders and the first failure is rethrown.
+   */
+  private void copyFolders(final LinkedList<FolderJob> jobs, int lanes)
+    throws MessagingException
+  {
+    final Throwable[] failure = new Throwable[1];
+    Thread[] threads = new Thread[lanes];
+    for (int i = 0; i < lanes; i++) {
+      final boolean extra = i > 0;
+      threads[i] = new Thread(new Runnable() {
+        public void run()
+        {
+          // extra stores are released once the queue is done, or closed if
+          //   a folder fails
+          boolean own = extra;
+          Lane lane = own ? new Lane() : main;
+          try {
+            if (own) {
+              try {
+                lane.connect();
+              } catch (RuntimeException ex) {
+                log("WARNING: Could not open extra connection for folder "
+                  + "copying, continuing with fewer: " + ex.getMessage());
+                lane.close();
+                own = false;
+                return;
+              }
+            }
+            FolderJob job;
+            while ((job = nextJob(jobs)) != null)
+              copyFolder(lane, job);
+            if (own) {
+              lane.release();
+              own = false;
+            }
+          } catch (Throwable t) {
+            synchronized (jobs) {
+              if (failure[0] == null)
+                failure[0] = t;
+              // no point starting more folders
+              jobs.clear();
+            }
+          } finally {
+            if (own)
+              lane.close();
           }
         }
-      } catch (MessagingException ex) {
-        log ("ERROR: Could not create destination directory '"
-          + dstf.getFullName() + "': " + ex.getMessage());
-        throw ex;
+      });
+      threads[i].setName("Folders-" + canonicalUsername + "-" + i);
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      while (t.isAlive()) {
+        try {
+          t.join();
+        } catch (InterruptedException ex) {
+        }
       }
+    }
 
-      // open source directory for copy
-      try {
-        srcf.open(Folder.READ_ONLY);
-      } catch (MessagingException ex) {
-        if (ex.getMessage().contains("folder cannot contain messages")) {
-          // Well, process the child folders then.
-          log("WARNING: Source directory '" + srcf.getFullName()
-            + "' cannot contain messages.  Skipping.");
-          handleChildren(srcf, odstf);
-          return;
+    if (failure[0] != null)
+      rethrow(failure[0]);
+  }
+
+  /**
+   * Walk the source tree creating any destination folders that are missing,
+   * and queue up every folder whose mail should be copied.
+   *
+   * @param dstName Destination folder srcn maps to, "" for the root.
+   */
+  private void mirrorDir(FolderTree.Node srcn, String dstName,
+    FolderTree dstTree, List<FolderJob> jobs) throws MessagingException
+  {
+    for (FolderTree.Node child : srcn.children) {
+      if (!keepRunning) {
+        log("INFO: Terminating early due to shutdown request.");
+        return;
+      }
+
+      String newn = IMAPUtils.mapFolderName(child.getName(), child.separator);
+      if (newn == null)
+        continue;
+      String newdst = dstName.length() == 0 ? newn
+        : dstName + dstTree.getSeparator() + newn;
+
+      // create destination directory if not extant
+      if (!dstTree.contains(newdst)) {
+        if (createFolder(newdst, child.canOpen, dstTree.getSeparator())) {
+          log("INFO: Created destination directory '" + newdst + "'");
+          dstTree.add(newdst, child.canOpen);
         } else {
-          log("ERROR: Could not open source directory '" + srcf.getFullName()
-            + "': " + ex.getMessage());
-          throw ex;
+          log("WARNING: Could not create destination directory '" + newdst
+            + "', but wanted to!");
+          // NB: exception will be thrown when we try to open, so for now
+          //   just WARN that we THOUGHT we wanted to create but couldn't.
         }
       }
 
-      // open destination directory for copy
+      if (child.canOpen) {
+        jobs.add(new FolderJob(child.name, newdst));
+      } else {
+        log("WARNING: Source directory '" + child.name
+          + "' cannot contain messages.  Skipping.");
+      }
+
+      mirrorDir(child, newdst, dstTree, jobs);
+    }
+  }
+
+  /**
+   * CREATE a destination folder, as IMAPFolder.create() would but without
+   * the LIST it follows that with.
+   *
+   * @param holdsMessages If not, create it to hold only folders.
+   * @return false if the server refused.
+   */
+  private boolean createFolder(String name, boolean holdsMessages, char sep)
+    throws MessagingException
+  {
+    final String fn = holdsMessages || sep == '\0' ? name : name + sep;
+    try {
+      Boolean created = (Boolean) ((IMAPFolder) main.dst.getDefaultFolder())
+        .doCommand(new IMAPFolder.ProtocolCommand() {
+        public Object doCommand(IMAPProtocol p) throws ProtocolException
+        {
+          try {
+            p.create(fn);
+            return Boolean.TRUE;
+          } catch (CommandFailedException ex) {
+            return Boolean.FALSE;
+          }
+        }
+      });
+      return created.booleanValue();
+    } catch (MessagingException ex) {
+      log ("ERROR: Could not create destination directory '" + name + "': "
+        + ex.getMessage());
+      throw ex;
+    }
+  }
+
+  /**
+   * Copy a folder over a lane, reconnecting it and picking up where the
+   * last attempt left off after transient errors.
+   */
+  private void copyFolder(Lane lane, FolderJob job) throws MessagingException
+  {
+    for (int attempt = 0;; attempt++) {
+      long resumeUid = job.resumeUid;
+      Throwable failure;
       try {
-        dstf.open(Folder.READ_WRITE);
+        lane.connect();
+        copyFolder(lane.src, lane.dst, job);
+        return;
       } catch (MessagingException ex) {
-        log("ERROR: Could not open destination directory '"
-          + dstf.getFullName() + "': " + ex.getMessage());
+        failure = ex;
+      } catch (RuntimeException ex) {
+        failure = ex;
+      }
+      if (job.resumeUid > resumeUid)
+        attempt = 0;
+      if (!recover(lane, failure, attempt))
+        rethrow(failure);
+      log("INFO: Resuming '" + job.srcName + "' after UID " + job.resumeUid);
+    }
+  }
+
+  private void copyFolder(IMAPStore s, IMAPStore d, FolderJob job)
+    throws MessagingException
+  {
+    final IMAPFolder srcf = (IMAPFolder) s.getFolder(job.srcName);
+    IMAPFolder dstf = (IMAPFolder) d.getFolder(job.dstName);
+
+    // open source directory for copy
+    long begin = System.nanoTime();
+    try {
+      srcf.open(Folder.READ_ONLY);
+      Metrics.record(Metrics.FOLDER_OPEN, begin);
+    } catch (MessagingException ex) {
+      if (ex.getMessage().contains("folder cannot contain messages")) {
+        // Its children were queued separately, so nothing more to do.
+        log("WARNING: Source directory '" + srcf.getFullName()
+          + "' cannot contain messages.  Skipping.");
+        return;
+      } else {
+        log("ERROR: Could not open source directory '" + srcf.getFullName()
+          + "': " + ex.getMessage());
         throw ex;
       }
+    }
 
-      // copy mail
-      int localCopied = 0;
-      int localSkipped = 0;
-      log("INFO: Copying '" + srcf.getFullName() + "' --> '"
-        + dstf.getFullName() + "'");
+    // open destination directory for copy
+    begin = System.nanoTime();
+    try {
+      dstf.open(Folder.READ_WRITE);
+      Metrics.record(Metrics.FOLDER_OPEN, begin);
+    } catch (MessagingException ex) {
+      log("ERROR: Could not open destination directory '"
+        + dstf.getFullName() + "': " + ex.getMessage());
+      throw ex;
+    }
 
-      Message[] msrc = srcf.getMessages();
-      for (Message m : msrc) {
-        if (!keepRunning) {
-          log("INFO: Copied " + localCopied + " Skipped " + localSkipped);
-          log("INFO: Terminating early due to shutdown request.");
-          srcf.close(false);
-          dstf.close(false);
-          return;
-        }
+    // copy mail
+    final FolderStats stats = new FolderStats();
+    stats.uidMap = new UidMap(srcf.getUIDValidity(), -1);
+    log("INFO: Copying '" + srcf.getFullName() + "' --> '"
+      + dstf.getFullName() + "'");
 
-        IMAPMessage im = null;
-        JsonObject jo = null;
+    AppendSink batcher = new AppendBatcher(dstf, settings.appendMaxCount,
+      settings.appendMaxBytes, new AppendBatcher.Listener() {
+      public void appended(AppendBatcher.Pending p)
+      {
+        synchronized (stats.unacked) {
+          stats.unacked.remove(p.fingerprint);
+        }
+        mts.recordMigration(canonicalUsername, p.fingerprint, p.size,
+          p.payload);
+        if (settings.flagSync && p.uid >= 0 && p.dstUid >= 0)
+          mapUid(srcf, stats, p);
+        countCopied.incrementAndGet();
+        stats.copied.incrementAndGet();
+        Metrics.copied(sdsrc.getHostname(), sddst.getHostname(), p.size);
+      }
+    });
+    ((AppendBatcher) batcher).setLimiter(dstLimiter);
+    if (settings.rawTransfer) {
+      if (s.hasCapability("IMAP4rev1"))
+        ((AppendBatcher) batcher).setRawTransfer(settings.rawChunkSize);
+      else
+        log("WARNING: Source is not IMAP4rev1, cannot copy messages raw.");
+    }
+    if (settings.pipeline) {
+      batcher = new AppendPipeline((AppendBatcher) batcher,
+        settings.pipelineMaxBytes, canonicalUsername);
+    }
+    boolean ok = false;
+    try {
+      copyMessages(srcf, dstf, batcher, stats, job);
+      ok = true;
+    } finally {
+      batcher.discard();
+      if (!ok)
+        unclaim(stats.unacked);
+      if (settings.flagSync) {
+        // not at the cost of the error the copy failed with
         try {
-          im = (IMAPMessage) m;
-          jo = IMAPUtils.getInfoJSON(im);
-
-          if (mtsCache.contains(canonicalUsername + "/"
-              + jo.get("Fingerprint").getAsString())) {
-            // We've already got a snapshot of this e-mail so don't
-            //   copy it again
-            countSkipped++;
-            localSkipped++;
-          } else {
-            // We've not seen this e-mail before, copy it
-            dstf.appendMessages(new Message[]{im});
-            mtsCache.add(canonicalUsername + "/" + jo.get("Fingerprint").getAsString());
-            mts.recordMigration(canonicalUsername, jo.get("Fingerprint").getAsString(), im.getSize(), jo.toString());
-            countCopied++;
-            localCopied++;
+          synchronized (stats) {
+            recordUidMap(srcf, stats);
           }
-        } catch (MessagingException ex) {
-          log("INFO: Copied " + localCopied + " Skipped " + localSkipped
-            + " before this error.");
-          log("ERROR: MessagingException: " + ex.getMessage());
-          StringWriter trace = new StringWriter();
-          ex.printStackTrace(new PrintWriter(trace));
-          log("TRACE: Stacktrace: " + trace.toString());
-          if (jo != null) {
-            log("TRACE: Message Info: " + jo.toString());
-          }
-          throw ex;
         } catch (RuntimeException ex) {
-          log("INFO: Copied " + localCopied + " Skipped " + localSkipped
-            + " before this error.");
-          log("ERROR: RuntimeException: " + ex.getMessage());
-          throw ex;
+          if (ok)
+            throw ex;
+          log("WARNING: Could not record where messages in '"
+            + srcf.getFullName() + "' went: " + ex.getMessage());
         }
       }
+    }
+  }
 
-      log("INFO: Copied " + localCopied + " Skipped " + localSkipped);
-      srcf.close(false);
-      dstf.close(false);
+  /**
+   * Note where an acknowledged message went, recording the mappings so far
+   * every so often.  Called by the sink, possibly on its own thread.
+   */
+  private void mapUid(IMAPFolder srcf, FolderStats stats,
+    AppendBatcher.Pending p)
+  {
+    synchronized (stats) {
+      if (p.dstUidValidity != stats.uidMap.dstUidValidity) {
+        recordUidMap(srcf, stats);
+        stats.uidMap.dstUidValidity = p.dstUidValidity;
+      }
+      stats.uidMap.put(p.uid, p.dstUid);
+      if (stats.uidMap.size() >= 1000)
+        recordUidMap(srcf, stats);
     }
-    
-    handleChildren(srcf, odstf);
   }
 
-  private void handleChildren(IMAPFolder srcf, IMAPFolder dstf) throws MessagingException
+  private void recordUidMap(IMAPFolder srcf, FolderStats stats)
   {
-    // Handle Child Directories...
-    for (Folder child : srcf.list()) {
+    UidMap map = stats.uidMap;
+    if (map.size() == 0)
+      return;
+    mts.recordUidMap(canonicalUsername, srcf.getFullName(), map);
+    stats.uidMap = new UidMap(map.srcUidValidity, map.dstUidValidity);
+  }
+
+  /**
+   * Add a fingerprint to the cache unless it is already there.  The cache is
+   * shared by every folder lane.
+   *
+   * @return true if the message still needs copying.
+   */
+  private boolean claim(byte[] fingerprint)
+  {
+    synchronized (mtsCache) {
+      return mtsCache.add(fingerprint);
+    }
+  }
+
+  /**
+   * Take back the claims on messages that were never acknowledged, so that
+   * a retry copies them.
+   */
+  private void unclaim(LinkedList<String> fingerprints)
+  {
+    synchronized (fingerprints) {
+      synchronized (mtsCache) {
+        for (String fp : fingerprints)
+          mtsCache.remove(fp);
+      }
+      fingerprints.clear();
+    }
+  }
+
+  /**
+   * Copy whatever the destination is missing from an open source folder to
+   * the open destination folder, and close both.  Starts after the job's
+   * resumeUid, if set, and keeps it up to date.
+   */
+  private void copyMessages(IMAPFolder srcf, IMAPFolder dstf,
+    AppendSink batcher, FolderStats stats, FolderJob job)
+    throws MessagingException
+  {
+    long uidValidity = srcf.getUIDValidity();
+    if (job.resumeUid > 0 && job.uidValidity != uidValidity) {
+      log("INFO: UIDVALIDITY of '" + srcf.getFullName() + "' changed since"
+        + " the last attempt, rescanning it.");
+      job.resumeUid = 0;
+    }
+    job.uidValidity = uidValidity;
+    FolderCheckpoint cp = null;
+    if (settings.checkpoints) {
+      cp = mts.getCheckpoint(canonicalUsername, srcf.getFullName());
+      if (cp != null && cp.uidValidity != uidValidity) {
+        log("INFO: UIDVALIDITY of '" + srcf.getFullName() + "' changed from "
+          + cp.uidValidity + " to " + uidValidity + ", rescanning it.");
+        cp = null;
+      }
+    }
+
+    // the HIGHESTMODSEQ flags are in step with, if known
+    long modSeq = cp != null ? cp.highestModSeq : 0;
+    if (job.modSeqUidValidity == uidValidity)
+      modSeq = job.highestModSeq;
+
+    long after = Math.max(cp != null ? cp.highUid : 0, job.resumeUid);
+    Message[] msrc;
+    if (after > 0) {
+      log("INFO: Only looking at messages after UID " + after);
+      msrc = getMessagesAfter(srcf, after);
+    } else {
+      msrc = srcf.getMessages();
+    }
+    ReconcileIndex present = null;
+    if (msrc.length > 0 && dstf.getMessageCount() > 0
+        && (settings.reconcile == Settings.Reconcile.YES
+          || (settings.reconcile == Settings.Reconcile.AUTO && mtsWasEmpty))) {
+      present = ReconcileIndex.build(dstf);
+      log("INFO: Indexed " + present.size() + " messages already in '"
+        + dstf.getFullName() + "' to reconcile against.");
+    }
+
+    // Every message up to highDone is either skipped or acknowledged by
+    //   the destination; that is the UID the next checkpoint records.
+    long highDone = after;
+    long lastSeen = highDone;
+
+    FetchProfile fp = IMAPUtils.getPrefetchProfile();
+    Fingerprinter fingerprinter = Fingerprinter.get();
+    for (int i = 0; i < msrc.length; i++) {
+      Message m = msrc[i];
       if (!keepRunning) {
+        batcher.flush();
+        mts.flushMigrations(canonicalUsername);
+        saveCheckpoint(srcf, uidValidity, lastSeen, modSeq);
+        log("INFO: Copied " + stats.copied.get() + " Skipped " + stats.skipped);
         log("INFO: Terminating early due to shutdown request.");
+        srcf.close(false);
+        dstf.close(false);
         return;
       }
 
-      String newn = IMAPUtils.mapFolderName(child.getName(), child.getSeparator());
-      if (newn != null) {
-        IMAPFolder newsrc = (IMAPFolder) child;
-        IMAPFolder newdst = (IMAPFolder) dstf.getFolder(newn);
-        mirrorDir(newsrc, newdst);
+      if (i % settings.prefetchWindow == 0)
+        prefetch(srcf, msrc, i, fp);
+
+      IMAPMessage im = null;
+      JsonObject jo = null;
+      try {
+        im = (IMAPMessage) m;
+        byte[] fingerprint = IMAPUtils.getFingerprint(im, fingerprinter);
+
+        // A message goes into the cache as soon as we decide to copy it,
+        //   so that a duplicate later in the same batch is skipped; the MTS
+        //   only hears about it once it is appended.
+        if (!claim(fingerprint)) {
+          // We've already got a snapshot of this e-mail so don't
+          //   copy it again
+          countSkipped.incrementAndGet();
+          stats.skipped++;
+        } else {
+          // If the folder fails before the destination acknowledges the
+          //   message, the claim is taken back so that a retry copies it.
+          String hex = Utils.convertToHex(fingerprint);
+          synchronized (stats.unacked) {
+            stats.unacked.add(hex);
+          }
+          jo = IMAPUtils.getInfoJSON(im, fingerprint);
+          // (fingerprint is overwritten from here on, see Fingerprinter)
+          if (present != null && present.contains(im)) {
+            // The destination has it though the MTS didn't know; record it
+            //   as if we had just copied it.
+            jo.addProperty("Reconciled", true);
+            mts.recordMigration(canonicalUsername, hex, im.getSize(),
+              jo.toString());
+            synchronized (stats.unacked) {
+              stats.unacked.remove(hex);
+            }
+            countSkipped.incrementAndGet();
+            stats.skipped++;
+            stats.reconciled++;
+          } else {
+            // We've not seen this e-mail before, copy it.
+            AppendBatcher.Pending p = new AppendBatcher.Pending(im, hex,
+              im.getSize(), jo.toString());
+            p.uid = srcf.getUID(im);
+            if (settings.pipeline && !settings.rawTransfer
+                && !MessageSpool.isLarge(p.size)) {
+              // read the body here so the source is busy while the
+              //   destination is appending earlier messages; large ones
+              //   are left for the appending thread to spool
+              p.body = fetchBody(im);
+            }
+            batcher.add(p);
+          }
+        }
+        lastSeen = srcf.getUID(im);
+        if (batcher.getPendingCount() == 0) {
+          highDone = lastSeen;
+          job.resumeUid = highDone;
+        }
+      } catch (MessagingException ex) {
+        log("INFO: Copied " + stats.copied.get() + " Skipped " + stats.skipped
+          + " before this error.");
+        log("ERROR: MessagingException: " + ex.getMessage());
+        StringWriter trace = new StringWriter();
+        ex.printStackTrace(new PrintWriter(trace));
+        log("TRACE: Stacktrace: " + trace.toString());
+        if (jo != null) {
+          log("TRACE: Message Info: " + jo.toString());
+        }
+        throw ex;
+      } catch (IOException ex) {
+        log("INFO: Copied " + stats.copied.get() + " Skipped " + stats.skipped
+          + " before this error.");
+        log("ERROR: IOException reading message: " + ex.getMessage());
+        throw new MessagingException("Could not read message: "
+          + ex.getMessage(), ex);
+      } catch (RuntimeException ex) {
+        log("INFO: Copied " + stats.copied.get() + " Skipped " + stats.skipped
+          + " before this error.");
+        log("ERROR: RuntimeException: " + ex.getMessage());
+        throw ex;
+      }
+    }
+
+    try {
+      batcher.flush();
+      mts.flushMigrations(canonicalUsername);
+      highDone = lastSeen;
+      job.resumeUid = highDone;
+      saveCheckpoint(srcf, uidValidity, highDone, modSeq);
+    } catch (MessagingException ex) {
+      log("INFO: Copied " + stats.copied.get() + " Skipped " + stats.skipped
+        + " before this error.");
+      log("ERROR: MessagingException: " + ex.getMessage());
+      throw ex;
+    }
+
+    log("INFO: Copied " + stats.copied.get() + " Skipped " + stats.skipped);
+    if (present != null)
+      log("INFO: " + stats.reconciled + " of those skipped were already in"
+        + " the destination.");
+    srcf.close(false);
+    dstf.close(false);
+  }
+
+  /**
+   * Messages with a UID above the given one.  UID FETCH n:* always returns
+   * at least the last message, even if its UID is below n, so filter.
+   */
+  private Message[] getMessagesAfter(IMAPFolder srcf, long uid)
+    throws MessagingException
+  {
+    Message[] ms = srcf.getMessagesByUID(uid + 1, UIDFolder.LASTUID);
+    int n = 0;
+    for (int i = 0; i < ms.length; i++) {
+      if (ms[i] != null && srcf.getUID(ms[i]) > uid)
+        ms[n++] = ms[i];
+    }
+    if (n == ms.length)
+      return ms;
+    Message[] r = new Message[n];
+    System.arraycopy(ms, 0, r, 0, n);
+    return r;
+  }
+
+  private void saveCheckpoint(IMAPFolder srcf, long uidValidity, long highUid,
+    long highestModSeq)
+  {
+    if (!settings.checkpoints && !settings.flagSync)
+      return;
+    mts.saveCheckpoint(canonicalUsername, srcf.getFullName(),
+      new FolderCheckpoint(uidValidity, highUid, highestModSeq));
+  }
+
+  /**
+   * For each folder, note its HIGHESTMODSEQ before anything is copied, and
+   * if it has moved on since the checkpoint, copy the flags of messages that
+   * changed to their copies.  Uses a source connection of its own, which is
+   * closed afterwards rather than reused; see FlagSync.
+   */
+  private void syncFlags(List<FolderJob> jobs) throws MessagingException
+  {
+    if (!main.src.hasCapability("CONDSTORE")) {
+      log("INFO: Source has no CONDSTORE, not synchronising flags.");
+      return;
+    }
+    if (!main.dst.hasCapability("UIDPLUS"))
+      log("WARNING: Destination has no UIDPLUS, so flags of messages copied"
+        + " to it cannot be kept in step.");
+
+    IMAPStore s = sdsrc.connect();
+    try {
+      for (FolderJob job : jobs) {
+        if (!keepRunning)
+          return;
+        long[] status = FlagSync.status(s, job.srcName);
+        if (status[0] == 0 || status[1] == 0)
+          continue;
+        job.modSeqUidValidity = status[0];
+        job.highestModSeq = status[1];
+        FolderCheckpoint cp = mts.getCheckpoint(canonicalUsername,
+          job.srcName);
+        if (cp == null || cp.uidValidity != status[0]
+            || cp.highestModSeq == 0 || cp.highestModSeq >= status[1])
+          continue;
+        syncFlags(s, job, cp);
+        mts.saveCheckpoint(canonicalUsername, job.srcName,
+          new FolderCheckpoint(cp.uidValidity, cp.highUid, status[1]));
       }
+    } finally {
+      Utils.closeQuietly(s);
+    }
+  }
+
+  private void syncFlags(IMAPStore s, FolderJob job, FolderCheckpoint cp)
+    throws MessagingException
+  {
+    IMAPFolder srcf = (IMAPFolder) s.getFolder(job.srcName);
+    FlagSync changes;
+    long begin = System.nanoTime();
+    srcf.open(Folder.READ_ONLY);
+    Metrics.record(Metrics.FOLDER_OPEN, begin);
+    try {
+      if (srcf.getUIDValidity() != cp.uidValidity)
+        return;
+      changes = FlagSync.changedSince(srcf, cp.highestModSeq);
+    } finally {
+      srcf.close(false);
     }
+    if (changes.size() == 0)
+      return;
+
+    IMAPFolder dstf = (IMAPFolder) main.dst.getFolder(job.dstName);
+    begin = System.nanoTime();
+    dstf.open(Folder.READ_WRITE);
+    Metrics.record(Metrics.FOLDER_OPEN, begin);
+    try {
+      UidMap map = mts.getUidMap(canonicalUsername, job.srcName,
+        cp.uidValidity, dstf.getUIDValidity());
+      int stored = changes.apply(dstf, map);
+      log("INFO: Flags of " + changes.size() + " messages in '" + job.srcName
+        + "' changed; updated " + stored + " copies in '" + job.dstName
+        + "'.");
+    } finally {
+      dstf.close(false);
+    }
+  }
+
+  /**
+   * Load the envelope (and with it the Message-ID, size and internal date),
+   * flags and UID for the next window of messages in one FETCH, so that
+   * fingerprinting does not need a round trip per message.
+   */
+  private void prefetch(IMAPFolder srcf, Message[] msrc, int start,
+    FetchProfile fp) throws MessagingException
+  {
+    int count = Math.min(settings.prefetchWindow, msrc.length - start);
+    Message[] window = new Message[count];
+    System.arraycopy(msrc, start, window, 0, count);
+    long begin = System.nanoTime();
+    try {
+      srcf.fetch(window, fp);
+    } catch (MessagingException ex) {
+      sample(srcLimiter, begin, true);
+      throw ex;
+    }
+    sample(srcLimiter, begin, false);
+    Metrics.record(Metrics.FETCH_ENVELOPE, begin);
+  }
+
+  private byte[] fetchBody(IMAPMessage im)
+    throws MessagingException, IOException
+  {
+    long begin = System.nanoTime();
+    try {
+      byte[] body = IMAPUtils.getMessageBytes(im);
+      sample(srcLimiter, begin, false);
+      return body;
+    } catch (MessagingException ex) {
+      sample(srcLimiter, begin, true);
+      throw ex;
+    } catch (IOException ex) {
+      sample(srcLimiter, begin, true);
+      throw ex;
+    }
+  }
+
+  /**
+   * @param begin System.nanoTime() when the command was sent.
+   */
+  private static void sample(AdaptiveLimiter limiter, long begin,
+    boolean error)
+  {
+    if (limiter != null)
+      limiter.sample((System.nanoTime() - begin) / 1000000, error);
   }
 }
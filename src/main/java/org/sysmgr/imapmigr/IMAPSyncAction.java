@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.ArrayList;
@@ -23,21 +24,21 @@ public class IMAPSyncAction implements Action
     public IMAPSync.ServerDetails src;
     public IMAPSync.ServerDetails dst;
 
-    private IMAPSync.ServerDetails mkDetails(String pfx, String username)
-    {
-      String un = n.ps(pfx + ".userpattern").replaceAll("%%USER%%", username);
-      return new IMAPSync.ServerDetails(n.ps(pfx + ".hostname"), un,
-        n.ps(pfx + ".password"), n.pb(pfx + ".usessl"));
+    /**
+     * End of input: a Worker that takes this exits.
+     */
+    CredentialPair() {
     }
 
     CredentialPair(String canonUser, String srcuser, String dstuser) {
       this.username = canonUser;
-      this.src = mkDetails("src", srcuser);
-      this.dst = mkDetails("dst", dstuser);
+      this.src = n.getServerDetails("src", srcuser);
+      this.dst = n.getServerDetails("dst", dstuser);
     }
   }
 
   private LinkedBlockingQueue<CredentialPair> queue;
+  private final CredentialPair endOfInput = new CredentialPair();
   private ArrayList<Worker> workers = new ArrayList<Worker>();
   private int maxThreads;
   private Nexus n;
@@ -46,11 +47,31 @@ public class IMAPSyncAction implements Action
 
   private final Object mutex = new Object();
   private PrintWriter globalLog;
-  private boolean closing = false;
+  private volatile boolean closing = false;
   private Set<String> accountIds;
+  private IMAPSync.Settings settings;
+  private int rampUpInterval;
+  private Map<String, AdaptiveLimiter> limiters = null;
+  private boolean force = false;
+  private int accountRetries;
+  private int accountRetryDelay;
+  /**
+   * Accounts that failed with a transient error in the current round.
+   */
+  private final List<CredentialPair> failed = new ArrayList<CredentialPair>();
 
   public IMAPSyncAction(Nexus n, int maxThreads, Set<String> accountIds)
   {
+    this(n, maxThreads, accountIds, false);
+  }
+
+  /**
+   * @param force Sync accounts already marked done as well.
+   */
+  public IMAPSyncAction(Nexus n, int maxThreads, Set<String> accountIds,
+    boolean force)
+  {
+    this.force = force;
     this.n = n;
     this.maxThreads = maxThreads;
     if (accountIds != null && accountIds.size() > 0)
@@ -59,10 +80,133 @@ public class IMAPSyncAction implements Action
     al = n.getAccountList();
     queue = new LinkedBlockingQueue<CredentialPair>(maxThreads * 15);
     mts = n.getMigrationTrackingStore();
+    settings = mkSettings();
+    rampUpInterval = n.pi("imap.rampup.interval", 0);
+    accountRetries = n.pi("imap.account.retries", 2);
+    accountRetryDelay = n.pi("imap.account.retrydelay", 60000);
+    if (n.pb("imap.aimd", false))
+      limiters = new HashMap<String, AdaptiveLimiter>();
+    StorePool.setLimits(n.pi("imap.pool.maxidle", 8),
+      n.pi("imap.pool.idletimeout", 60000),
+      n.pi("imap.pool.checkafter", 5000));
+    String spoolDir = n.ps("imap.spool.dir", null);
+    MessageSpool.configure(n.pi("imap.spool.threshold", 16 * 1024 * 1024),
+      n.pi("imap.spool.maxconcurrent", 2),
+      spoolDir == null ? null : new File(spoolDir));
+    initFingerprints();
     initLog();
+    initMetrics();
     Runtime.getRuntime().addShutdownHook(new SDHook());
   }
 
+  private IMAPSync.Settings mkSettings()
+  {
+    IMAPSync.Settings s = new IMAPSync.Settings();
+    s.prefetchWindow = n.pi("imap.prefetch.window", s.prefetchWindow);
+    if (s.prefetchWindow < 1)
+      throw new RuntimeException("imap.prefetch.window must be at least 1.");
+    s.appendMaxCount = n.pi("imap.append.maxcount", s.appendMaxCount);
+    s.appendMaxBytes = n.pi("imap.append.maxbytes", (int) s.appendMaxBytes);
+    if (s.appendMaxCount < 1 || s.appendMaxBytes < 1)
+      throw new RuntimeException("imap.append.maxcount and "
+        + "imap.append.maxbytes must be at least 1.");
+    s.checkpoints = n.pb("imap.checkpoints", s.checkpoints);
+    s.pipeline = n.pb("imap.pipeline", s.pipeline);
+    s.pipelineMaxBytes = n.pi("imap.pipeline.maxbytes",
+      (int) s.pipelineMaxBytes);
+    s.folderConnections = n.pi("imap.folder.connections",
+      s.folderConnections);
+    String rc = n.ps("imap.reconcile", "no");
+    if (rc.equalsIgnoreCase("auto"))
+      s.reconcile = IMAPSync.Settings.Reconcile.AUTO;
+    else if (n.pb("imap.reconcile", false))
+      s.reconcile = IMAPSync.Settings.Reconcile.YES;
+    s.rawTransfer = n.pb("imap.rawtransfer", s.rawTransfer);
+    s.rawChunkSize = n.pi("imap.rawtransfer.chunksize", s.rawChunkSize);
+    if (s.rawChunkSize < 1)
+      throw new RuntimeException("imap.rawtransfer.chunksize must be at"
+        + " least 1.");
+    s.retries = n.pi("imap.retry.max", s.retries);
+    s.retryBackoff = n.pi("imap.retry.backoff", (int) s.retryBackoff);
+    s.retryMaxBackoff = n.pi("imap.retry.maxbackoff",
+      (int) s.retryMaxBackoff);
+    s.flagSync = n.pb("imap.flagsync", s.flagSync);
+    return s;
+  }
+
+  /**
+   * Fingerprints hash their text in the platform charset unless told
+   * otherwise; set this to whatever charset earlier runs used.
+   */
+  private void initFingerprints()
+  {
+    String cs = n.ps("imap.fingerprint.charset", null);
+    if (cs == null)
+      return;
+    try {
+      Fingerprinter.setCharset(Charset.forName(cs));
+    } catch (IllegalArgumentException iae) {
+      throw new RuntimeException("Unknown charset '" + cs + "' for "
+        + "imap.fingerprint.charset.", iae);
+    }
+  }
+
+  /**
+   * Start the Workers, which then run until they take the end of input off
+   * the queue or we shut down.  Worker i waits i * imap.rampup.interval ms
+   * before taking its first account so that the servers see the load build
+   * up gradually.
+   */
+  private void startWorkers(int count)
+  {
+    synchronized (mutex) {
+      for (int i = 0; i < count && !closing; i++)
+        workers.add(new Worker(i * rampUpInterval));
+    }
+  }
+
+  /**
+   * The limiter for a server, shared by every account on it whether as source
+   * or destination, or null if concurrency is not adaptive.
+   */
+  private AdaptiveLimiter getLimiter(IMAPSync.ServerDetails sd)
+  {
+    if (limiters == null)
+      return null;
+    synchronized (limiters) {
+      AdaptiveLimiter l = limiters.get(sd.getHostname());
+      if (l == null) {
+        l = new AdaptiveLimiter(sd.getHostname(),
+          n.pi("imap.aimd.initial", Math.min(8, maxThreads)),
+          n.pi("imap.aimd.min", 1), n.pi("imap.aimd.max", maxThreads),
+          n.pi("imap.aimd.target", 10000), n.pi("imap.aimd.window", 20),
+          n.pi("imap.aimd.maxerrors", 5), n.pi("imap.aimd.backoff", 50));
+        limiters.put(sd.getHostname(), l);
+      }
+      return l;
+    }
+  }
+
+  /**
+   * Wait for a slot on a server.
+   *
+   * @return false if we are shutting down instead.
+   */
+  private boolean acquire(AdaptiveLimiter l)
+  {
+    while (!closing) {
+      if (l == null || l.tryAcquire(1000))
+        return true;
+    }
+    return false;
+  }
+
+  private void release(AdaptiveLimiter l)
+  {
+    if (l != null)
+      l.release();
+  }
+
   public void enqueueAccount(CredentialPair t)
   {
     if (closing)
@@ -72,10 +216,22 @@ public class IMAPSyncAction implements Action
     } catch (InterruptedException ex) {
       throw new RuntimeException(ex);
     }
+  }
+
+  /**
+   * No more accounts are coming: once the queue drains each Worker exits.
+   */
+  private void endInput()
+  {
+    int count;
     synchronized (mutex) {
-      if (!closing && workers.size() < maxThreads) {
-        workers.add(new Worker());
-      } else {
+      count = workers.size();
+    }
+    for (int i = 0; i < count; i++) {
+      try {
+        queue.put(endOfInput);
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
       }
     }
   }
@@ -91,8 +247,13 @@ public class IMAPSyncAction implements Action
     }
   }
 
+  /**
+   * Cancel: accounts not yet started are dropped, those in progress are asked
+   * to stop at the next message, and idle Workers are woken so they can exit.
+   */
   public void shutdown()
   {
+    int count;
     synchronized (mutex) {
       closing = true;
       for (Worker w : workers) {
@@ -100,7 +261,11 @@ public class IMAPSyncAction implements Action
         if (t != null)
           t.shutdown();
       }
+      count = workers.size();
     }
+    queue.clear();
+    for (int i = 0; i < count; i++)
+      queue.offer(endOfInput);
   }
 
   private void initLog()
@@ -124,6 +289,19 @@ public class IMAPSyncAction implements Action
     globalLog.println("#Task:       imapsync");
   }
 
+  /**
+   * JMX registration, and a dump of the metrics to the global log every
+   * imap.metrics.interval seconds (0 for never).
+   */
+  private void initMetrics()
+  {
+    if (n.pb("imap.metrics.jmx", true))
+      Metrics.registerMBeans();
+    int interval = n.pi("imap.metrics.interval", 60);
+    if (interval > 0)
+      new Metrics.Reporter(globalLog, interval * 1000L).start();
+  }
+
   public void doAction()
   {
     Map<String, String> pairs = new HashMap<String, String>();
@@ -144,21 +322,82 @@ public class IMAPSyncAction implements Action
       globalLog.println("MAIN: Processing all accounts in account list file.");
     }
 
-    // enqueue the work:
+    // accounts finished in earlier runs need not even be connected to
+    Set<String> done = null;
+    if (!force) {
+      done = mts.getDoneUsers();
+      globalLog.println("MAIN: Found " + done.size() + " accounts marked done"
+        + " in the MTS, skipping them.");
+    }
+
+    List<AccountListLine> todo = new ArrayList<AccountListLine>();
+    int skipped = 0;
     for (AccountListLine all: al.values()) {
       if (accountIds != null && !accountIds.contains(all.canonicalUsername))
         continue;
-      CredentialPair cp = new CredentialPair(all.canonicalUsername,
-        all.srcUsername, all.dstUsername);
-      enqueueAccount(cp);
-      i++;
+      if (done != null && done.contains(all.canonicalUsername)) {
+        skipped++;
+        continue;
+      }
+      todo.add(all);
+    }
+    if (skipped > 0) {
+      globalLog.println("MAIN: Skipped " + skipped + " accounts already done"
+        + " (use --force to sync them again).");
+    }
+    List<CredentialPair> round = new ArrayList<CredentialPair>();
+    for (AccountListLine all: todo) {
+      round.add(new CredentialPair(all.canonicalUsername, all.srcUsername,
+        all.dstUsername));
     }
 
-    globalLog.println("MAIN: Finished scheduling " + i
-      + " accounts for migration, waiting for queue exhaustion...");
-    waitForSteadyStateEnd();
+    // Accounts that fail with a transient error get another go once
+    //   everything else has had one, up to imap.account.retries times.
+    for (int r = 0;; r++) {
+      startWorkers(Math.min(maxThreads, round.size()));
+
+      // enqueue the work:
+      for (CredentialPair cp : round) {
+        if (closing)
+          break;
+        enqueueAccount(cp);
+        i++;
+      }
+      endInput();
 
+      globalLog.println("MAIN: Finished scheduling " + i
+        + " accounts for migration, waiting for queue exhaustion...");
+      waitForSteadyStateEnd();
+
+      synchronized (failed) {
+        round = new ArrayList<CredentialPair>(failed);
+        failed.clear();
+      }
+      if (round.isEmpty() || closing)
+        break;
+      if (r >= accountRetries) {
+        StringBuffer names = new StringBuffer();
+        for (CredentialPair cp : round)
+          names.append(' ').append(cp.username);
+        globalLog.println("MAIN: Giving up on " + round.size() + " accounts"
+          + " after " + (r + 1) + " attempts:" + names);
+        break;
+      }
+      globalLog.println("MAIN: Retrying " + round.size() + " accounts that"
+        + " failed with transient errors in " + accountRetryDelay + "ms"
+        + " (retry " + (r + 1) + " of " + accountRetries + ").");
+      long until = System.currentTimeMillis() + accountRetryDelay;
+      for (long left = accountRetryDelay; left > 0 && !closing;
+          left = until - System.currentTimeMillis())
+        Utils.sleep((int) Math.min(left, 1000));
+      i = 0;
+    }
+
+    StorePool.closeAll();
+    Metrics.dump(globalLog);
     globalLog.println("MAIN: All threads terminated, ending action.");
+    globalLog.println("MAIN: MTS log backlog " + mts.getLogBacklog()
+      + " entries, " + mts.getLogDropped() + " dropped so far.");
     Utils.closeQuietly(globalLog);
   }
 
@@ -175,17 +414,22 @@ public class IMAPSyncAction implements Action
     @Override
     public void run() {
       System.out.println("SHUTDOWN MANAGER: WAITING FOR THREADS TO COMPLETE");
+      System.out.println("SHUTDOWN MANAGER: " + mts.getLogBacklog()
+        + " MTS LOG ENTRIES QUEUED");
       close();
-      System.out.println("SHUTDOWN MANAGER: THREADS COMPLETED, ENDING");
+      System.out.println("SHUTDOWN MANAGER: THREADS COMPLETED, MTS LOG DRAINED"
+        + " (" + mts.getLogDropped() + " ENTRIES DROPPED), ENDING");
     }
   }
 
   class Worker extends Thread
   {
-    private IMAPSync is = null;
+    private volatile IMAPSync is = null;
+    private int startDelay;
 
-    public Worker()
+    public Worker(int startDelay)
     {
+      this.startDelay = startDelay;
       setName("Worker");
       setDaemon(false);
       start();
@@ -194,39 +438,54 @@ public class IMAPSyncAction implements Action
     @Override
     public void run()
     {
-      // random spawn delay of 0-12 seconds
-      Utils.sleep((int)Math.random() * 12000);
+      // staggered start, cut short by a shutdown
+      long until = System.currentTimeMillis() + startDelay;
+      for (long left = startDelay; left > 0 && !closing;
+          left = until - System.currentTimeMillis())
+        Utils.sleep((int) Math.min(left, 1000));
 
       globalLog.println("INFO: [" + getId() + "] Worker spinning up.");
 
       for (;;) {
-        if (closing) {
-          synchronized (mutex) {
-            globalLog.println("INFO: [" + getId() + "] Shutdown requested, "
-              + "Worker spinning down.");
-            workers.remove(this);
-            mutex.notifyAll();
-          }
-          return;
+        CredentialPair cp;
+        try {
+          cp = closing ? endOfInput : queue.take();
+        } catch (InterruptedException ex) {
+          continue;
         }
-        CredentialPair cp = queue.poll();
-        if (cp == null) {
+        if (closing || cp == endOfInput) {
           synchronized (mutex) {
-            globalLog.println("INFO: [" + getId() + "] Worker found no jobs, "
-              + "spinning down.");
+            globalLog.println("INFO: [" + getId() + "] "
+              + (closing ? "Shutdown requested" : "No more jobs")
+              + ", Worker spinning down.");
             workers.remove(this);
             mutex.notifyAll();
           }
           return;
         }
+        // Wait until both servers can take another account:
+        AdaptiveLimiter sl = getLimiter(cp.src);
+        AdaptiveLimiter dl = getLimiter(cp.dst);
+        if (sl == dl)
+          dl = null;
+        if (!acquire(sl))
+          continue;
+        if (!acquire(dl)) {
+          release(sl);
+          continue;
+        }
+
         // Perform the requested work:
-        globalLog.println("INFO: [" + getId() + "] Starting " + cp.username);
+        globalLog.println("INFO: [" + getId() + "] Starting " + cp.username
+          + (sl == null ? "" : " (" + sl + (dl == null ? "" : ", " + dl)
+          + ")"));
         mts.log("imapsync", cp.username, "INFO: starting sync");
         long begin = System.nanoTime();
         is = null;
         try {
           // Perform sync:
-          is = new IMAPSync(cp.username, mts, cp.src, cp.dst);
+          is = new IMAPSync(cp.username, mts, cp.src, cp.dst, settings);
+          is.setLimiters(sl, getLimiter(cp.dst));
           is.run();
 
           if (is.getWasDone()) {
@@ -262,8 +521,17 @@ public class IMAPSyncAction implements Action
             + " abnormally, aborted after " + ((end - begin) / 1e9)
             + " seconds, error: " + t.getClass().getName() + ": "
             + t.getMessage());
+          if (!closing && IMAPUtils.isTransient(t)) {
+            globalLog.println("INFO: [" + getId() + "] " + cp.username
+              + " failed with a transient error, may be retried");
+            synchronized (failed) {
+              failed.add(cp);
+            }
+          }
         } finally {
           is = null;
+          release(sl);
+          release(dl);
         }
       }
     }
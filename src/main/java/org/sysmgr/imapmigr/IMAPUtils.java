@@ -1,17 +1,32 @@
 package org.sysmgr.imapmigr;
 
 import com.google.gson.JsonObject;
+import com.sun.mail.iap.ConnectionException;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.util.CRLFOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
 import java.util.regex.Pattern;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.StoreClosedException;
+import javax.mail.UIDFolder;
 
 public class IMAPUtils
 {
+  private static final Pattern TRANSIENT_CODES
+    = Pattern.compile("\\[(UNAVAILABLE|INUSE)\\]");
 
   // XXX TODO - Get this from properties file:
   public static String mapFolderName(String src, char sep) {
@@ -24,53 +39,157 @@ public class IMAPUtils
     return src;
   }
   
-  public static JsonObject getInfoJSON(IMAPMessage m)
+  /**
+   * Everything getInfoJSON() reads from a message: ENVELOPE carries the
+   * Message-ID, Subject and Sender, and JavaMail fetches INTERNALDATE and
+   * RFC822.SIZE along with it.
+   */
+  public static FetchProfile getPrefetchProfile()
+  {
+    FetchProfile fp = new FetchProfile();
+    fp.add(FetchProfile.Item.ENVELOPE);
+    fp.add(FetchProfile.Item.FLAGS);
+    fp.add(UIDFolder.FetchProfileItem.UID);
+    return fp;
+  }
+
+  /**
+   * The value fingerprints are keyed on in place of a Message-ID: the
+   * trimmed, lowercased Message-ID, or when there is none something made up
+   * from the Subject, Sender and internal date.
+   */
+  private static String getMessageKey(IMAPMessage m) throws MessagingException
+  {
+    String messageId = m.getMessageID();
+    if (messageId != null) {
+      return messageId.trim().toLowerCase();
+    } else {
+      /*
+       * Unfortunately sometimes Message-ID is null, so make some shit up
+       * and pretend.
+       */
+      return m.getSubject() + "|" + m.getSender() + "|"
+        + m.getReceivedDate().getTime();
+    }
+  }
+
+  /**
+   * MD5 of "messagekey|size|internaldate|folder", fed straight into the
+   * digest.  Only messages without a Message-ID cost any String building.
+   *
+   * @return The raw fingerprint, in a buffer owned by f and reused by its
+   *   next digest.
+   */
+  public static byte[] getFingerprint(IMAPMessage m, Fingerprinter f)
   {
     try {
+      f.reset();
       String messageId = m.getMessageID();
-      if (messageId != null) {
-        messageId = messageId.trim().toLowerCase();
-      } else {
-        /*
-         * Unfortunately sometimes Message-ID is null, so make some shit up
-         * and pretend.
-         */
-        messageId = m.getSubject() + "|" + m.getSender() + "|"
-          + m.getReceivedDate().getTime();
-      }
+      if (messageId != null)
+        f.appendTrimLower(messageId);
+      else
+        f.append(getMessageKey(m));
+      f.append('|').append(m.getSize());
+      f.append('|').append(m.getReceivedDate().getTime());
+      f.append('|').appendTrimLower(m.getFolder().getFullName());
+      return f.digest();
+    } catch (NullPointerException ex) {
+      dumpMessage(m);
+      throw ex;
+    } catch (MessagingException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
 
-      String size = Integer.toString(m.getSize());
-      String indate = Long.toString(m.getReceivedDate().getTime());
-      String fingerprint = Utils.getMD5(messageId + "|" + size + "|" + indate
-        + "|" + m.getFolder().getFullName().trim().toLowerCase());
+  public static JsonObject getInfoJSON(IMAPMessage m)
+  {
+    return getInfoJSON(m, getFingerprint(m, Fingerprinter.get()));
+  }
 
+  /**
+   * @param fingerprint As returned by getFingerprint() for this message.
+   */
+  public static JsonObject getInfoJSON(IMAPMessage m, byte[] fingerprint)
+  {
+    try {
       JsonObject oo = new JsonObject();
       oo.addProperty("Source-Folder", m.getFolder().getFullName());
-      oo.addProperty("Message-ID", messageId);
+      oo.addProperty("Message-ID", getMessageKey(m));
       oo.addProperty("Size", m.getSize());
       oo.addProperty("Internal-Date", m.getReceivedDate().getTime());
       oo.addProperty("Subject", m.getSubject());
       if (m.getSender() != null)
         oo.addProperty("Sender", m.getSender().toString());
-      oo.addProperty("Fingerprint", fingerprint);
+      oo.addProperty("Fingerprint", Utils.convertToHex(fingerprint));
       return oo;
     } catch (NullPointerException ex) {
-      try {
-        System.err.println("=========== NULL POINTER MESSAGE: ===============");
-        System.err.println("Message ID: " + m.getMessageID());
-        System.err.println("Subject: " + m.getSubject());
-        if (m.getSender() != null)
-          System.err.println("Sender: " + m.getSender().toString());
-        System.err.println("Flags: " + getFlagsInfo(m.getFlags()));
-        System.err.println("=========== NULL POINTER MESSAGE^ ===============");
-      } catch (MessagingException me) {
-      }
+      dumpMessage(m);
       throw ex;
     } catch (MessagingException ex) {
       throw new RuntimeException(ex);
     }
   }
 
+  private static void dumpMessage(IMAPMessage m)
+  {
+    try {
+      System.err.println("=========== NULL POINTER MESSAGE: ===============");
+      System.err.println("Message ID: " + m.getMessageID());
+      System.err.println("Subject: " + m.getSubject());
+      if (m.getSender() != null)
+        System.err.println("Sender: " + m.getSender().toString());
+      System.err.println("Flags: " + getFlagsInfo(m.getFlags()));
+      System.err.println("=========== NULL POINTER MESSAGE^ ===============");
+    } catch (MessagingException me) {
+    }
+  }
+
+  /**
+   * The message as JavaMail would APPEND it: serialised with CRLF line
+   * endings.
+   */
+  public static byte[] getMessageBytes(Message m)
+    throws IOException, MessagingException
+  {
+    long begin = System.nanoTime();
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    OutputStream os = new CRLFOutputStream(bos);
+    m.writeTo(os);
+    os.flush();
+    Metrics.record(Metrics.FETCH_BODY, begin);
+    return bos.toByteArray();
+  }
+
+  /**
+   * IMAP parenthesised flag list, e.g. "(\Seen \Flagged $Label1)", or null
+   * if there are no flags to send.
+   */
+  public static String getFlagList(Flags f)
+  {
+    StringBuffer sb = new StringBuffer();
+    for (Flags.Flag flag : f.getSystemFlags()) {
+      String s;
+      if (flag.equals(Flags.Flag.ANSWERED))
+        s = "\\Answered";
+      else if (flag.equals(Flags.Flag.DELETED))
+        s = "\\Deleted";
+      else if (flag.equals(Flags.Flag.DRAFT))
+        s = "\\Draft";
+      else if (flag.equals(Flags.Flag.FLAGGED))
+        s = "\\Flagged";
+      else if (flag.equals(Flags.Flag.SEEN))
+        s = "\\Seen";
+      else
+        continue; // \Recent cannot be set by a client
+      sb.append(sb.length() == 0 ? "(" : " ").append(s);
+    }
+    for (String uf : f.getUserFlags())
+      sb.append(sb.length() == 0 ? "(" : " ").append(uf);
+    if (sb.length() == 0)
+      return null;
+    return sb.append(")").toString();
+  }
+
   public static String getFlagsInfo(Flags f)
   {
     String sys = "";
@@ -98,4 +217,35 @@ public class IMAPUtils
     }
     return "SYS: [" + sys.trim() + "] USER: [" + user.trim() + "]";
   }
+
+  /**
+   * Whether an error looks like it will go away if we reconnect and try
+   * again: the connection dropped or timed out, or the server said NO with
+   * a response code (RFC 5530) meaning "not now".  Anything else, a refused
+   * login or a BAD for instance, would only fail the same way again.
+   */
+  public static boolean isTransient(Throwable t)
+  {
+    // MessagingException's cause is its next exception
+    for (int depth = 0; t != null && depth < 10; depth++) {
+      if (t instanceof AuthenticationFailedException)
+        return false;
+      if (t instanceof FolderClosedException
+          || t instanceof StoreClosedException
+          || t instanceof ConnectionException
+          || t instanceof SocketException
+          || t instanceof InterruptedIOException
+          || t instanceof EOFException)
+        return true;
+      String msg = t.getMessage();
+      if (msg != null && TRANSIENT_CODES.matcher(msg).find())
+        return true;
+      // JavaMail's answer to a NO for a message body, response code and
+      //   all; with no way to tell, give it another go
+      if (t instanceof MessagingException && "No content".equals(msg))
+        return true;
+      t = t.getCause();
+    }
+    return false;
+  }
 }
@@ -0,0 +1,165 @@
+package org.sysmgr.imapmigr;
+
+import java.util.Set;
+
+/**
+ * Times every call to another MigrationTrackingStore, into one Metrics
+ * histogram per method ("mts.recordMigration" and so on).
+ */
+public class InstrumentedMTS implements MigrationTrackingStore
+{
+  private MigrationTrackingStore mts;
+
+  public InstrumentedMTS(MigrationTrackingStore mts)
+  {
+    this.mts = mts;
+  }
+
+  public void close()
+  {
+    mts.close();
+  }
+
+  public boolean isUserDone(String username)
+  {
+    long begin = System.nanoTime();
+    try {
+      return mts.isUserDone(username);
+    } finally {
+      Metrics.record("mts.isUserDone", begin);
+    }
+  }
+
+  public void markUserDone(String username)
+  {
+    long begin = System.nanoTime();
+    try {
+      mts.markUserDone(username);
+    } finally {
+      Metrics.record("mts.markUserDone", begin);
+    }
+  }
+
+  public Set<String> getDoneUsers()
+  {
+    long begin = System.nanoTime();
+    try {
+      return mts.getDoneUsers();
+    } finally {
+      Metrics.record("mts.getDoneUsers", begin);
+    }
+  }
+
+  public void recordMigration(String username, String fingerprint, int size,
+    String payload)
+  {
+    long begin = System.nanoTime();
+    try {
+      mts.recordMigration(username, fingerprint, size, payload);
+    } finally {
+      Metrics.record("mts.recordMigration", begin);
+    }
+  }
+
+  public boolean isMigrated(String username, String fingerprint)
+  {
+    long begin = System.nanoTime();
+    try {
+      return mts.isMigrated(username, fingerprint);
+    } finally {
+      Metrics.record("mts.isMigrated", begin);
+    }
+  }
+
+  public void flushMigrations(String username)
+  {
+    long begin = System.nanoTime();
+    try {
+      mts.flushMigrations(username);
+    } finally {
+      Metrics.record("mts.flushMigrations", begin);
+    }
+  }
+
+  public FingerprintSet getMigratedForUser(String username)
+  {
+    long begin = System.nanoTime();
+    try {
+      return mts.getMigratedForUser(username);
+    } finally {
+      Metrics.record("mts.getMigratedForUser", begin);
+    }
+  }
+
+  public UserTotals getMigratedTotals(String username)
+  {
+    long begin = System.nanoTime();
+    try {
+      return mts.getMigratedTotals(username);
+    } finally {
+      Metrics.record("mts.getMigratedTotals", begin);
+    }
+  }
+
+  public FolderCheckpoint getCheckpoint(String username, String folder)
+  {
+    long begin = System.nanoTime();
+    try {
+      return mts.getCheckpoint(username, folder);
+    } finally {
+      Metrics.record("mts.getCheckpoint", begin);
+    }
+  }
+
+  public void saveCheckpoint(String username, String folder,
+    FolderCheckpoint cp)
+  {
+    long begin = System.nanoTime();
+    try {
+      mts.saveCheckpoint(username, folder, cp);
+    } finally {
+      Metrics.record("mts.saveCheckpoint", begin);
+    }
+  }
+
+  public void recordUidMap(String username, String folder, UidMap map)
+  {
+    long begin = System.nanoTime();
+    try {
+      mts.recordUidMap(username, folder, map);
+    } finally {
+      Metrics.record("mts.recordUidMap", begin);
+    }
+  }
+
+  public UidMap getUidMap(String username, String folder,
+    long srcUidValidity, long dstUidValidity)
+  {
+    long begin = System.nanoTime();
+    try {
+      return mts.getUidMap(username, folder, srcUidValidity, dstUidValidity);
+    } finally {
+      Metrics.record("mts.getUidMap", begin);
+    }
+  }
+
+  public void log(String system, String username, String payload)
+  {
+    long begin = System.nanoTime();
+    try {
+      mts.log(system, username, payload);
+    } finally {
+      Metrics.record("mts.log", begin);
+    }
+  }
+
+  public long getLogDropped()
+  {
+    return mts.getLogDropped();
+  }
+
+  public int getLogBacklog()
+  {
+    return mts.getLogBacklog();
+  }
+}
@@ -0,0 +1,138 @@
+package org.sysmgr.imapmigr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of operation latencies in microseconds.  Buckets are
+ * log-linear, HDR style: each power of two is split into eight, so any value
+ * is known to within 12.5% while the whole range of a long fits in a few
+ * hundred counters.  Recording is one increment on the bucket plus three on
+ * the totals; nothing allocates or blocks.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean
+{
+  private static final int SUB_BITS = 3;
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram(String name)
+  {
+    this.name = name;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public void record(long micros)
+  {
+    if (micros < 0)
+      micros = 0;
+    counts.incrementAndGet(index(micros));
+    count.incrementAndGet();
+    sum.addAndGet(micros);
+    long m;
+    while (micros > (m = max.get()) && !max.compareAndSet(m, micros))
+      ;
+  }
+
+  /**
+   * Record the time since begin, a System.nanoTime() value.
+   */
+  public void recordSince(long begin)
+  {
+    record((System.nanoTime() - begin) / 1000);
+  }
+
+  public long getCount()
+  {
+    return count.get();
+  }
+
+  public long getMean()
+  {
+    long c = count.get();
+    return c == 0 ? 0 : sum.get() / c;
+  }
+
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  public long getP50()
+  {
+    return getPercentile(50.0);
+  }
+
+  public long getP90()
+  {
+    return getPercentile(90.0);
+  }
+
+  public long getP99()
+  {
+    return getPercentile(99.0);
+  }
+
+  public long getP999()
+  {
+    return getPercentile(99.9);
+  }
+
+  /**
+   * @return The upper end of the bucket holding the given percentile, or 0
+   *   if nothing has been recorded.  Only approximate while recording
+   *   continues.
+   */
+  public long getPercentile(double pct)
+  {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      total += counts.get(i);
+    if (total == 0)
+      return 0;
+    long target = (long) Math.ceil(total * pct / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= target)
+        return Math.min(max.get(), upperBound(i));
+    }
+    return max.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return name + " n=" + getCount() + " mean=" + getMean() + "us p50="
+      + getP50() + "us p99=" + getP99() + "us max=" + getMax() + "us";
+  }
+
+  static int index(long v)
+  {
+    if (v < SUB)
+      return (int) v;
+    int e = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int) (v >>> (e - SUB_BITS)) & (SUB - 1);
+    return (e - SUB_BITS + 1) * SUB + sub;
+  }
+
+  static long upperBound(int index)
+  {
+    if (index < SUB)
+      return index;
+    int e = index / SUB + SUB_BITS - 1;
+    long sub = index % SUB;
+    long width = 1L << (e - SUB_BITS);
+    return ((SUB + sub) << (e - SUB_BITS)) + width - 1;
+  }
+}
@@ -0,0 +1,15 @@
+package org.sysmgr.imapmigr;
+
+/**
+ * JMX view of a LatencyHistogram.  Times are in microseconds.
+ */
+public interface LatencyHistogramMBean
+{
+  long getCount();
+  long getMean();
+  long getMax();
+  long getP50();
+  long getP90();
+  long getP99();
+  long getP999();
+}
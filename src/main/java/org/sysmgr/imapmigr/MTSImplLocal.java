@@ -0,0 +1,915 @@
+package org.sysmgr.imapmigr;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A MigrationTrackingStore kept in files in one local directory, for runs on
+ * a single machine that would rather not need a database.  Everything but the
+ * log is appended to segment files (seg-NNNNNN.log) written through memory
+ * maps, and read back into an in-memory index per user when the store is
+ * opened; after that no call touches the disk except to write, and
+ * getUidMap(), see below.
+ *
+ * Each record is its length, a CRC32 and the record itself, the length being
+ * written last.  Opening stops at the first record that is incomplete or
+ * fails its CRC, which after a crash can only be in the newest segment, and
+ * everything from there to the end of that segment is cleared.  A bad record
+ * anywhere else is an error.
+ *
+ * Writes reach the disk in batches: the maps are forced every syncInterval
+ * ms, and at once by flushMigrations() and markUserDone().  Because the
+ * segments are read back only up to the first bad record, a record can never
+ * survive a crash that an earlier one did not.
+ *
+ * UID mappings are only kept on disk; the index just knows where each
+ * folder's are, and they are read back when asked for.
+ *
+ * Checkpoints are saved over and over, so older segments gradually fill with
+ * superseded ones, as they do with UID mappings once a folder's UIDVALIDITY
+ * changes.  Every compactInterval ms each older segment with less than
+ * compactPercent of its bytes still current is rewritten with just those.
+ * Writes wait while that happens.
+ *
+ * Log entries go, one tab-separated line each, to a plain "log" file in the
+ * same directory.
+ */
+public class MTSImplLocal implements MigrationTrackingStore
+{
+  private static final int MAGIC = 0x494d5453; // "IMTS"
+  private static final int VERSION = 1;
+  private static final int FILE_HEADER = 8;
+  private static final int RECORD_HEADER = 8;
+  private static final Pattern SEGMENT_NAME
+    = Pattern.compile("seg-(\\d{6})\\.log");
+
+  private static final byte MAIL = 1;
+  private static final byte DONE = 2;
+  private static final byte CHECKPOINT = 3;
+  private static final byte UIDMAP = 4;
+
+  private static class Segment
+  {
+    int id;
+    File file;
+    MappedByteBuffer buf;
+    int end = FILE_HEADER;
+    long live = 0;
+  }
+
+  /**
+   * Where a record that later ones may supersede is stored.
+   */
+  private static class Loc
+  {
+    Segment seg;
+    int offset;
+    int size;
+
+    Loc(Segment seg, int offset, int size)
+    {
+      this.seg = seg;
+      this.offset = offset;
+      this.size = size;
+    }
+  }
+
+  private static class CheckpointLoc extends Loc
+  {
+    FolderCheckpoint cp;
+
+    CheckpointLoc(Segment seg, int offset, int size, FolderCheckpoint cp)
+    {
+      super(seg, offset, size);
+      this.cp = cp;
+    }
+  }
+
+  /**
+   * The UIDMAP records for a source folder under its current UIDVALIDITY.
+   */
+  private static class UidMapLocs
+  {
+    long srcUidValidity;
+    List<Loc> locs = new ArrayList<Loc>();
+
+    UidMapLocs(long srcUidValidity)
+    {
+      this.srcUidValidity = srcUidValidity;
+    }
+  }
+
+  private static class UserIndex
+  {
+    FingerprintSet migrated = new FingerprintSet();
+    // anything recorded that isn't an MD5, which should be nothing
+    Set<String> other = null;
+    long messages = 0;
+    long bytes = 0;
+    Map<String, CheckpointLoc> checkpoints
+      = new HashMap<String, CheckpointLoc>();
+    Map<String, UidMapLocs> uidMaps = new HashMap<String, UidMapLocs>();
+    Loc done = null;
+  }
+
+  private File dir;
+  private int segmentSize;
+  private long syncInterval;
+  private long compactInterval;
+  private int compactPercent;
+
+  private final List<Segment> segments = new ArrayList<Segment>();
+  private Segment active;
+  private final Map<String, UserIndex> users
+    = new HashMap<String, UserIndex>();
+  private final CRC32 crc = new CRC32();
+
+  /*
+   * Records are numbered as they are appended; synced is the last one known
+   * to be on disk.
+   */
+  private long appended = 0;
+  private long synced = 0;
+  private final Object syncLock = new Object();
+
+  private Writer log;
+  private final Object logLock = new Object();
+  private final AtomicLong logDropped = new AtomicLong();
+
+  private Syncer syncer;
+  private volatile boolean closed = false;
+
+  /**
+   * @param dir Directory the segments and log are kept in.
+   * @param segmentSize Bytes per segment file.
+   * @param syncInterval Milliseconds between forcing writes to disk.
+   * @param compactInterval Milliseconds between looking for segments to
+   *   compact, 0 for never.
+   * @param compactPercent Compact a segment once less than this percentage
+   *   of it is current.
+   */
+  public MTSImplLocal(File dir, int segmentSize, long syncInterval,
+    long compactInterval, int compactPercent)
+  {
+    if (segmentSize < 4096)
+      throw new IllegalArgumentException("Local MTS segments must be at"
+        + " least 4096 bytes.");
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.syncInterval = syncInterval;
+    this.compactInterval = compactInterval;
+    this.compactPercent = compactPercent;
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new RuntimeException("Could not create local MTS directory "
+        + dir);
+    try {
+      open();
+      log = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(new File(dir, "log"), true), "UTF-8"));
+    } catch (IOException ioe) {
+      throw new RuntimeException("Could not open local MTS in " + dir + ": "
+        + ioe.getMessage(), ioe);
+    }
+    syncer = new Syncer();
+  }
+
+  public void close()
+  {
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+    }
+    syncer.interrupt();
+    while (syncer.isAlive()) {
+      try {
+        syncer.join();
+      } catch (InterruptedException ex) {
+      }
+    }
+    sync();
+    synchronized (logLock) {
+      Utils.closeQuietly(log);
+    }
+  }
+
+  public synchronized boolean isUserDone(String username)
+  {
+    UserIndex u = users.get(username);
+    return u != null && u.done != null;
+  }
+
+  public void markUserDone(String username)
+  {
+    synchronized (this) {
+      if (isUserDone(username))
+        return;
+      Loc loc = append(encode(DONE, username, new Date().toString()));
+      user(username).done = loc;
+    }
+    sync();
+  }
+
+  public synchronized Set<String> getDoneUsers()
+  {
+    Set<String> done = new HashSet<String>();
+    for (Map.Entry<String, UserIndex> e : users.entrySet()) {
+      if (e.getValue().done != null)
+        done.add(e.getKey());
+    }
+    return done;
+  }
+
+  public synchronized void recordMigration(String username,
+    String fingerprint, int size, String payload)
+  {
+    // already recorded is fine, as with the database's unique constraint
+    if (isMigrated(username, fingerprint))
+      return;
+    append(encode(MAIL, username, fingerprint, size, payload));
+    addMigration(user(username), fingerprint, size);
+  }
+
+  public synchronized boolean isMigrated(String username, String fingerprint)
+  {
+    UserIndex u = users.get(username);
+    if (u == null)
+      return false;
+    if (FingerprintSet.isFingerprint(fingerprint))
+      return u.migrated.contains(fingerprint);
+    return u.other != null && u.other.contains(fingerprint);
+  }
+
+  public void flushMigrations(String username)
+  {
+    sync();
+  }
+
+  public synchronized FingerprintSet getMigratedForUser(String username)
+  {
+    UserIndex u = users.get(username);
+    if (u == null)
+      return new FingerprintSet();
+    // the caller adds to it
+    return new FingerprintSet(u.migrated);
+  }
+
+  public synchronized UserTotals getMigratedTotals(String username)
+  {
+    UserIndex u = users.get(username);
+    if (u == null)
+      return new UserTotals(0, 0);
+    return new UserTotals(u.messages, u.bytes);
+  }
+
+  public synchronized FolderCheckpoint getCheckpoint(String username,
+    String folder)
+  {
+    UserIndex u = users.get(username);
+    CheckpointLoc cl = u == null ? null : u.checkpoints.get(folder);
+    if (cl == null)
+      return null;
+    return new FolderCheckpoint(cl.cp.uidValidity, cl.cp.highUid,
+      cl.cp.highestModSeq);
+  }
+
+  public synchronized void saveCheckpoint(String username, String folder,
+    FolderCheckpoint cp)
+  {
+    Loc loc = append(encode(CHECKPOINT, username, folder, cp.uidValidity,
+      cp.highUid, cp.highestModSeq));
+    setCheckpoint(user(username), folder, new CheckpointLoc(loc.seg,
+      loc.offset, loc.size, new FolderCheckpoint(cp.uidValidity,
+      cp.highUid, cp.highestModSeq)));
+  }
+
+  public synchronized void recordUidMap(String username, String folder,
+    UidMap map)
+  {
+    // as many pairs a record as leaves room in a segment for the names
+    int per = Math.max(1, Math.min(4096,
+      (segmentSize - FILE_HEADER - RECORD_HEADER - 4096) / 8));
+    UserIndex u = user(username);
+    for (int start = 0; start < map.size(); start += per) {
+      long[] pairs = new long[Math.min(per, map.size() - start)];
+      for (int i = 0; i < pairs.length; i++) {
+        pairs[i] = (map.getSrcUid(start + i) << 32)
+          | map.getDstUid(start + i);
+      }
+      Loc loc = append(encode(UIDMAP, username, folder, map.srcUidValidity,
+        map.dstUidValidity, pairs));
+      addUidMap(u, folder, map.srcUidValidity, loc);
+    }
+  }
+
+  public synchronized UidMap getUidMap(String username, String folder,
+    long srcUidValidity, long dstUidValidity)
+  {
+    UidMap map = new UidMap(srcUidValidity, dstUidValidity);
+    UserIndex u = users.get(username);
+    UidMapLocs ul = u == null ? null : u.uidMaps.get(folder);
+    if (ul == null || ul.srcUidValidity != srcUidValidity)
+      return map;
+    for (Loc loc : ul.locs) {
+      ByteBuffer b = ByteBuffer.wrap(read(loc.seg, loc.offset));
+      b.position(1);
+      // user and folder
+      b.position(b.position() + 4 + b.getInt());
+      b.position(b.position() + 4 + b.getInt());
+      b.getLong();
+      if (b.getLong() != dstUidValidity)
+        continue;
+      for (int i = b.getInt(); i > 0; i--) {
+        long p = b.getLong();
+        map.put(p >>> 32, p & 0xffffffffL);
+      }
+    }
+    return map;
+  }
+
+  public void log(String system, String username, String payload)
+  {
+    String line = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(
+      new Date()) + "\t" + escape(system) + "\t" + escape(username) + "\t"
+      + escape(payload) + "\n";
+    synchronized (logLock) {
+      try {
+        log.write(line);
+      } catch (IOException ioe) {
+        logDropped.incrementAndGet();
+      }
+    }
+  }
+
+  public long getLogDropped()
+  {
+    return logDropped.get();
+  }
+
+  public int getLogBacklog()
+  {
+    return 0;
+  }
+
+  private static String escape(String s)
+  {
+    if (s == null)
+      return "";
+    return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n")
+      .replace("\r", "\\r");
+  }
+
+  private UserIndex user(String username)
+  {
+    UserIndex u = users.get(username);
+    if (u == null) {
+      u = new UserIndex();
+      users.put(username, u);
+    }
+    return u;
+  }
+
+  private boolean addMigration(UserIndex u, String fingerprint, int size)
+  {
+    boolean added;
+    if (FingerprintSet.isFingerprint(fingerprint)) {
+      added = u.migrated.add(fingerprint);
+    } else {
+      if (u.other == null)
+        u.other = new HashSet<String>();
+      added = u.other.add(fingerprint);
+    }
+    if (added) {
+      u.messages++;
+      u.bytes += size;
+    }
+    return added;
+  }
+
+  private void setCheckpoint(UserIndex u, String folder, CheckpointLoc cl)
+  {
+    CheckpointLoc old = u.checkpoints.put(folder, cl);
+    if (old != null)
+      old.seg.live -= old.size;
+  }
+
+  /**
+   * Mappings made under an older UIDVALIDITY are dropped.
+   */
+  private void addUidMap(UserIndex u, String folder, long srcUidValidity,
+    Loc loc)
+  {
+    UidMapLocs ul = u.uidMaps.get(folder);
+    if (ul == null || ul.srcUidValidity != srcUidValidity) {
+      if (ul != null) {
+        for (Loc old : ul.locs)
+          old.seg.live -= old.size;
+      }
+      ul = new UidMapLocs(srcUidValidity);
+      u.uidMaps.put(folder, ul);
+    }
+    ul.locs.add(loc);
+  }
+
+  /*
+   * Segment files.
+   */
+
+  private void open() throws IOException
+  {
+    File[] files = dir.listFiles();
+    Map<Integer, File> found = new HashMap<Integer, File>();
+    for (File f : files) {
+      // left over from a compaction that didn't finish
+      if (f.getName().endsWith(".compact")) {
+        f.delete();
+        continue;
+      }
+      Matcher m = SEGMENT_NAME.matcher(f.getName());
+      if (m.matches())
+        found.put(Integer.parseInt(m.group(1)), f);
+    }
+    List<Integer> ids = new ArrayList<Integer>(found.keySet());
+    java.util.Collections.sort(ids);
+
+    for (int i = 0; i < ids.size(); i++) {
+      boolean last = i == ids.size() - 1;
+      Segment s = new Segment();
+      s.id = ids.get(i);
+      s.file = found.get(s.id);
+      s.buf = map(s.file, last ? segmentSize : 0);
+      if (s.buf.getInt(0) == 0 && last) {
+        // created just before a crash
+        writeFileHeader(s.buf);
+      } else if (s.buf.getInt(0) != MAGIC || s.buf.getInt(4) != VERSION) {
+        throw new IOException(s.file + " is not a local MTS segment.");
+      }
+      replay(s, last);
+      segments.add(s);
+    }
+    if (segments.isEmpty())
+      segments.add(newSegment(1));
+    active = segments.get(segments.size() - 1);
+  }
+
+  /**
+   * @param minSize Extend the file with zeroes to at least this many bytes.
+   */
+  private static MappedByteBuffer map(File f, int minSize) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      if (raf.length() < minSize)
+        raf.setLength(minSize);
+      // the map stays valid once the file is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+        raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void writeFileHeader(ByteBuffer buf)
+  {
+    buf.putInt(0, MAGIC);
+    buf.putInt(4, VERSION);
+  }
+
+  private File segmentFile(int id)
+  {
+    return new File(dir, String.format("seg-%06d.log", id));
+  }
+
+  private Segment newSegment(int id) throws IOException
+  {
+    Segment s = new Segment();
+    s.id = id;
+    s.file = segmentFile(id);
+    s.buf = map(s.file, segmentSize);
+    writeFileHeader(s.buf);
+    s.buf.force();
+    syncDir();
+    return s;
+  }
+
+  /**
+   * Make a file created in or renamed into the directory stick.
+   */
+  private void syncDir() throws IOException
+  {
+    FileChannel fc;
+    try {
+      fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+    } catch (IOException ioe) {
+      // some systems won't open a directory, and need no sync of one
+      return;
+    }
+    try {
+      fc.force(true);
+    } finally {
+      fc.close();
+    }
+  }
+
+  /**
+   * Rebuild the index from one segment, and find where it ends.
+   */
+  private void replay(Segment s, boolean last) throws IOException
+  {
+    int pos = FILE_HEADER;
+    for (;;) {
+      byte[] rec = read(s, pos);
+      if (rec == null)
+        break;
+      if (rec.length == 0) {
+        if (!last)
+          throw new IOException(s.file + " is corrupt at offset " + pos
+            + ".");
+        break;
+      }
+      apply(s, pos, rec);
+      pos += RECORD_HEADER + rec.length;
+    }
+    if (last)
+      clearTail(s, pos);
+    s.end = pos;
+  }
+
+  /**
+   * Zero the newest segment from where its records stop.  The pages of a
+   * map reach the disk in any order, so a crash may leave whole records
+   * beyond one whose length never made it; they must go before new ones
+   * are appended over them, or a later replay could line up with one.
+   */
+  private static void clearTail(Segment s, int pos)
+  {
+    boolean dirty = false;
+    for (int i = pos; i < s.buf.limit(); i++) {
+      if (s.buf.get(i) != 0) {
+        s.buf.put(i, (byte) 0);
+        dirty = true;
+      }
+    }
+    if (dirty) {
+      System.err.println("WARNING: Discarded incomplete records at the end"
+        + " of " + s.file + " from offset " + pos + ".");
+      s.buf.force();
+    }
+  }
+
+  /**
+   * @return The record at pos, null at the end of the segment, or an empty
+   *   array if the record there is incomplete or damaged.
+   */
+  private byte[] read(Segment s, int pos)
+  {
+    ByteBuffer buf = s.buf;
+    if (pos + RECORD_HEADER > buf.limit())
+      return null;
+    int len = buf.getInt(pos);
+    if (len == 0)
+      return null;
+    if (len < 0 || len > buf.limit() - pos - RECORD_HEADER)
+      return new byte[0];
+    byte[] rec = new byte[len];
+    ByteBuffer b = buf.duplicate();
+    b.position(pos + RECORD_HEADER);
+    b.get(rec);
+    crc.reset();
+    crc.update(rec, 0, len);
+    if ((int) crc.getValue() != buf.getInt(pos + 4))
+      return new byte[0];
+    return rec;
+  }
+
+  private void apply(Segment s, int pos, byte[] rec)
+    throws UnsupportedEncodingException
+  {
+    ByteBuffer b = ByteBuffer.wrap(rec);
+    byte type = b.get();
+    UserIndex u = user(readString(b));
+    int size = RECORD_HEADER + rec.length;
+    switch (type) {
+    case MAIL:
+      String fp = readString(b);
+      if (addMigration(u, fp, b.getInt()))
+        s.live += size;
+      break;
+    case DONE:
+      if (u.done != null)
+        u.done.seg.live -= u.done.size;
+      u.done = new Loc(s, pos, size);
+      s.live += size;
+      break;
+    case CHECKPOINT:
+      String folder = readString(b);
+      long uidValidity = b.getLong();
+      long highUid = b.getLong();
+      // older checkpoints have no HIGHESTMODSEQ
+      long modSeq = b.remaining() >= 8 ? b.getLong() : 0;
+      setCheckpoint(u, folder, new CheckpointLoc(s, pos, size,
+        new FolderCheckpoint(uidValidity, highUid, modSeq)));
+      s.live += size;
+      break;
+    case UIDMAP:
+      addUidMap(u, readString(b), b.getLong(), new Loc(s, pos, size));
+      s.live += size;
+      break;
+    default:
+      throw new RuntimeException("Unknown record type " + type + " in "
+        + s.file + ".");
+    }
+  }
+
+  private static String readString(ByteBuffer b)
+    throws UnsupportedEncodingException
+  {
+    int len = b.getInt();
+    String s = new String(b.array(), b.position(), len, "UTF-8");
+    b.position(b.position() + len);
+    return s;
+  }
+
+  private static byte[] encode(byte type, Object... fields)
+  {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bos);
+    try {
+      out.writeByte(type);
+      for (Object o : fields) {
+        if (o instanceof String) {
+          byte[] b = ((String) o).getBytes("UTF-8");
+          out.writeInt(b.length);
+          out.write(b);
+        } else if (o instanceof Integer) {
+          out.writeInt((Integer) o);
+        } else if (o instanceof Long) {
+          out.writeLong((Long) o);
+        } else if (o instanceof long[]) {
+          long[] l = (long[]) o;
+          out.writeInt(l.length);
+          for (long v : l)
+            out.writeLong(v);
+        } else if (o == null) {
+          out.writeInt(0);
+        } else {
+          throw new IllegalArgumentException("Cannot encode " + o);
+        }
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * Add a record to the active segment, starting a new one if it's full.
+   * Called with the store locked.
+   */
+  private Loc append(byte[] rec)
+  {
+    if (closed)
+      throw new IllegalStateException("The local MTS has been closed.");
+    int size = RECORD_HEADER + rec.length;
+    if (size > segmentSize - FILE_HEADER)
+      throw new RuntimeException("Record of " + size + " bytes will not fit"
+        + " in a local MTS segment.");
+    try {
+      if (active.end + size > active.buf.limit())
+        roll();
+    } catch (IOException ioe) {
+      throw new RuntimeException("Could not start a new local MTS segment: "
+        + ioe.getMessage(), ioe);
+    }
+    Segment s = active;
+    int pos = s.end;
+    ByteBuffer b = s.buf.duplicate();
+    b.position(pos + RECORD_HEADER);
+    b.put(rec);
+    crc.reset();
+    crc.update(rec, 0, rec.length);
+    s.buf.putInt(pos + 4, (int) crc.getValue());
+    // the length goes last; until it's there the record doesn't exist
+    s.buf.putInt(pos, rec.length);
+    s.end += size;
+    s.live += size;
+    appended++;
+    return new Loc(s, pos, size);
+  }
+
+  private void roll() throws IOException
+  {
+    // everything in the old segment goes to disk before anything in the new
+    active.buf.force();
+    active = newSegment(active.id + 1);
+    segments.add(active);
+  }
+
+  private void sync()
+  {
+    synchronized (syncLock) {
+      long upTo;
+      MappedByteBuffer buf;
+      synchronized (this) {
+        upTo = appended;
+        buf = active.buf;
+      }
+      if (synced < upTo) {
+        // records before upTo in an older segment were forced by roll()
+        buf.force();
+        synced = upTo;
+      }
+    }
+    synchronized (logLock) {
+      try {
+        log.flush();
+      } catch (IOException ioe) {
+        System.err.println("WARNING: Could not write the local MTS log: "
+          + ioe.getMessage());
+      }
+    }
+  }
+
+  /*
+   * Compaction.
+   */
+
+  private synchronized void compact()
+  {
+    for (int i = 0; i < segments.size(); i++) {
+      Segment s = segments.get(i);
+      long used = s.end - FILE_HEADER;
+      if (s == active || used == 0 || s.live * 100 >= used * compactPercent)
+        continue;
+      try {
+        Segment ns = compact(s);
+        if (ns == null) {
+          segments.remove(i--);
+          s.file.delete();
+        } else {
+          segments.set(i, ns);
+        }
+      } catch (IOException ioe) {
+        System.err.println("WARNING: Could not compact " + s.file + ": "
+          + ioe.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Rewrite a full segment with only its current records.  The new file
+   * replaces the old with a rename, so a crash leaves one or the other.
+   *
+   * @return The new segment, or null if nothing in the old one was current.
+   */
+  private Segment compact(Segment s) throws IOException
+  {
+    File tmp = new File(dir, s.file.getName() + ".compact");
+    FileOutputStream fos = new FileOutputStream(tmp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      fos, 65536));
+    Segment ns = new Segment();
+    ns.id = s.id;
+    ns.file = s.file;
+    List<Loc> moved = new ArrayList<Loc>();
+    List<Integer> movedTo = new ArrayList<Integer>();
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      int pos = FILE_HEADER;
+      while (pos < s.end) {
+        byte[] rec = read(s, pos);
+        int size = RECORD_HEADER + rec.length;
+        Loc current = currentLoc(s, pos, rec);
+        if (current != null) {
+          if (current.seg == s) {
+            moved.add(current);
+            movedTo.add(ns.end);
+          }
+          crc.reset();
+          crc.update(rec, 0, rec.length);
+          out.writeInt(rec.length);
+          out.writeInt((int) crc.getValue());
+          out.write(rec);
+          ns.end += size;
+          ns.live += size;
+        }
+        pos += size;
+      }
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if (ns.live == 0) {
+      tmp.delete();
+      return null;
+    }
+    if (!tmp.renameTo(s.file)) {
+      tmp.delete();
+      throw new IOException("Could not rename " + tmp + " to " + s.file);
+    }
+    syncDir();
+    ns.buf = map(ns.file, 0);
+    for (int i = 0; i < moved.size(); i++) {
+      moved.get(i).seg = ns;
+      moved.get(i).offset = movedTo.get(i);
+    }
+    return ns;
+  }
+
+  /**
+   * @return For a record still current, the Loc to update if it moves (or a
+   *   stand-in for migration records, which are always current), else null.
+   */
+  private Loc currentLoc(Segment s, int pos, byte[] rec)
+    throws UnsupportedEncodingException
+  {
+    ByteBuffer b = ByteBuffer.wrap(rec);
+    byte type = b.get();
+    UserIndex u = users.get(readString(b));
+    Loc l;
+    switch (type) {
+    case MAIL:
+      // duplicates are never written, so every one counts
+      return new Loc(null, pos, 0);
+    case DONE:
+      l = u.done;
+      break;
+    case CHECKPOINT:
+      l = u.checkpoints.get(readString(b));
+      break;
+    case UIDMAP:
+      UidMapLocs ul = u.uidMaps.get(readString(b));
+      if (ul == null)
+        return null;
+      for (Loc ml : ul.locs) {
+        if (ml.seg == s && ml.offset == pos)
+          return ml;
+      }
+      return null;
+    default:
+      return null;
+    }
+    return l != null && l.seg == s && l.offset == pos ? l : null;
+  }
+
+  /**
+   * Forces writes to disk every syncInterval ms, and compacts every
+   * compactInterval.
+   */
+  private class Syncer extends Thread
+  {
+    Syncer()
+    {
+      setName("MTS-Syncer");
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run()
+    {
+      long lastCompact = System.currentTimeMillis();
+      while (!closed) {
+        try {
+          Thread.sleep(Math.max(syncInterval, 10));
+        } catch (InterruptedException ie) {
+          return;
+        }
+        sync();
+        if (compactInterval > 0
+            && System.currentTimeMillis() - lastCompact >= compactInterval) {
+          compact();
+          lastCompact = System.currentTimeMillis();
+        }
+      }
+    }
+  }
+}
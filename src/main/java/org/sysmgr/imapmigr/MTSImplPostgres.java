@@ -4,16 +4,101 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.postgresql.ds.PGPoolingDataSource;
 
 public class MTSImplPostgres implements MigrationTrackingStore
 {
 
+  private static final String INSERT_MAIL = ""
+    + "INSERT INTO MAILS "
+    + "   (USERNAME, FINGERPRINT, MAILSIZE, PAYLOAD) "
+    + "   VALUES (?, ?, ?, ?) ";
+
+  private static final String INSERT_LOG = ""
+    + "INSERT INTO LOG "
+    + "   (ENTRYTIME, SYSTEM, USERNAME, PAYLOAD) "
+    + "   VALUES (?, ?, ?, ?) ";
+
+  private static final int LOG_BATCH_MAX = 500;
+
+  private static class LogEntry
+  {
+    Timestamp when = new Timestamp(System.currentTimeMillis());
+    String system;
+    String username;
+    String payload;
+
+    LogEntry(String system, String username, String payload)
+    {
+      this.system = system;
+      this.username = username;
+      this.payload = payload;
+    }
+  }
+
+  private static class MailRecord
+  {
+    String fingerprint;
+    int size;
+    String payload;
+
+    MailRecord(String fingerprint, int size, String payload)
+    {
+      this.fingerprint = fingerprint;
+      this.size = size;
+      this.payload = payload;
+    }
+  }
+
+  private static class MailBuffer
+  {
+    List<MailRecord> records = new ArrayList<MailRecord>();
+    long firstAdded = System.currentTimeMillis();
+  }
+
   private PGPoolingDataSource pool;
 
+  /*
+   * Write-behind state for recordMigration(): per-user buffers that are
+   * flushed as one JDBC batch once they reach batchSize records, once the
+   * oldest record is maxDelay milliseconds old, or on request.
+   */
+  private volatile boolean writeBehind = false;
+  private int batchSize;
+  private long maxDelay;
+  private final Map<String, MailBuffer> buffers
+    = new HashMap<String, MailBuffer>();
+  /**
+   * Batches per user taken out of buffers and not yet inserted (or put
+   * back).  Guarded by buffers, which is notified as each one finishes.
+   */
+  private final Map<String, Integer> inFlight = new HashMap<String, Integer>();
+  private Flusher flusher;
+  private volatile boolean closed = false;
+
+  /*
+   * Asynchronous log sink: log() queues entries and the LogWriter thread
+   * inserts them in batches.  When the queue is full we either block the
+   * caller or drop the entry and count it, depending on dropLogWhenFull.
+   */
+  private BlockingQueue<LogEntry> logQueue;
+  private boolean dropLogWhenFull;
+  private LogWriter logWriter;
+  private final AtomicLong logDropped = new AtomicLong();
+
   public MTSImplPostgres(String hostname, int port, String database,
     String username, String password, int maxConns)
   {
@@ -27,8 +112,77 @@ public class MTSImplPostgres implements MigrationTrackingStore
     pool.setMaxConnections(maxConns);
   }
 
+  /**
+   * Buffer recordMigration() calls instead of issuing an INSERT for each.
+   *
+   * @param batchSize Records per user to collect before flushing.
+   * @param maxDelay Milliseconds a record may sit in the buffer.
+   */
+  public synchronized void setWriteBehind(int batchSize, long maxDelay)
+  {
+    this.batchSize = batchSize;
+    this.maxDelay = maxDelay;
+    if (!writeBehind) {
+      writeBehind = true;
+      flusher = new Flusher();
+    }
+  }
+
+  /**
+   * Write log entries from a background thread rather than in the caller.
+   *
+   * @param queueSize Entries that may wait to be written.
+   * @param dropWhenFull If the queue is full, drop (and count) the entry
+   *   instead of blocking the caller until there is room.
+   */
+  public synchronized void setAsyncLog(int queueSize, boolean dropWhenFull)
+  {
+    if (logWriter != null)
+      throw new IllegalStateException("Asynchronous log already enabled.");
+    logQueue = new ArrayBlockingQueue<LogEntry>(queueSize);
+    dropLogWhenFull = dropWhenFull;
+    logWriter = new LogWriter();
+  }
+
   public void close()
   {
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+    }
+    if (flusher != null) {
+      // so that nothing it fails to insert is put back after the last flush
+      flusher.interrupt();
+      while (flusher.isAlive()) {
+        try {
+          flusher.join();
+        } catch (InterruptedException ex) {
+        }
+      }
+    }
+    flushAllMigrations();
+    if (logWriter != null) {
+      // the writer drains whatever is queued once it sees closed
+      while (logWriter.isAlive()) {
+        try {
+          logWriter.join();
+        } catch (InterruptedException ex) {
+        }
+      }
+    }
+  }
+
+  public long getLogDropped()
+  {
+    return logDropped.get();
+  }
+
+  public int getLogBacklog()
+  {
+    if (logQueue == null)
+      return 0;
+    return logQueue.size();
   }
 
   private void checkOpen()
@@ -37,13 +191,17 @@ public class MTSImplPostgres implements MigrationTrackingStore
     //  throw new IllegalStateException("This Migration Tracking Store has been closed.");
   }
 
-  public Set<String> getMigratedForUser(String username)
+  public FingerprintSet getMigratedForUser(String username)
   {
+    flushMigrations(username);
     Connection c = null;
     PreparedStatement ps = null;
     ResultSet rs = null;
     try {
       c = pool.getConnection();
+      // a cursor (and so a transaction) lets the driver stream the rows
+      //   rather than holding the whole result in memory at once
+      c.setAutoCommit(false);
 
       String query = ""
         + "SELECT "
@@ -52,27 +210,70 @@ public class MTSImplPostgres implements MigrationTrackingStore
         + "   MAILS "
         + "WHERE "
         + "   USERNAME = ? ";
-      ps = c.prepareStatement(query, ResultSet.TYPE_SCROLL_INSENSITIVE,
+      ps = c.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
         ResultSet.CONCUR_READ_ONLY);
+      ps.setFetchSize(5000);
       ps.setString(1, username);
       rs = ps.executeQuery();
-      Set<String> mails = new HashSet<String>();
-      while (rs.next())
-        mails.add(username + "/" + rs.getString("FINGERPRINT"));
-      // XXX Should alter this interface to return set without username/ prefix
-      //    on every entry.
+      FingerprintSet mails = new FingerprintSet();
+      while (rs.next()) {
+        String fp = rs.getString(1);
+        // anything that isn't an MD5 could never match what we look up
+        if (FingerprintSet.isFingerprint(fp))
+          mails.add(fp);
+      }
+      c.commit();
       return mails;
     } catch (SQLException sqle) {
+      rollbackQuietly(c);
       throw new RuntimeException("Could not get migrated user set for "
         + username + ": SQLException: " + sqle.getMessage(), sqle);
     } finally {
       Utils.closeQuietly(rs);
+      Utils.closeQuietly(ps);
+      try {
+        if (c != null)
+          c.setAutoCommit(true);
+      } catch (SQLException sqle) {
+      }
+      Utils.closeQuietly(c);
+    }
+  }
+
+  public UserTotals getMigratedTotals(String username)
+  {
+    flushMigrations(username);
+    Connection c = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      c = pool.getConnection();
+
+      String query = ""
+        + "SELECT "
+        + "   COUNT(*), COALESCE(SUM(MAILSIZE), 0) "
+        + "FROM "
+        + "   MAILS "
+        + "WHERE "
+        + "   USERNAME = ? ";
+      ps = c.prepareStatement(query);
+      ps.setString(1, username);
+      rs = ps.executeQuery();
+      rs.next();
+      return new UserTotals(rs.getLong(1), rs.getLong(2));
+    } catch (SQLException sqle) {
+      throw new RuntimeException("Could not get migrated totals for "
+        + username + ": SQLException: " + sqle.getMessage(), sqle);
+    } finally {
+      Utils.closeQuietly(rs);
+      Utils.closeQuietly(ps);
       Utils.closeQuietly(c);
     }
   }
 
   public boolean isMigrated(String username, String fingerprint)
   {
+    flushMigrations(username);
     Connection c = null;
     PreparedStatement ps = null;
     ResultSet rs = null;
@@ -130,6 +331,46 @@ public class MTSImplPostgres implements MigrationTrackingStore
     }
   }
 
+  public Set<String> getDoneUsers()
+  {
+    Connection c = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      c = pool.getConnection();
+      // stream with a cursor, as in getMigratedForUser()
+      c.setAutoCommit(false);
+
+      String query = ""
+        + "SELECT "
+        + "   USERNAME "
+        + "FROM "
+        + "   DONELIST ";
+      ps = c.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+        ResultSet.CONCUR_READ_ONLY);
+      ps.setFetchSize(5000);
+      rs = ps.executeQuery();
+      Set<String> done = new HashSet<String>();
+      while (rs.next())
+        done.add(rs.getString(1));
+      c.commit();
+      return done;
+    } catch (SQLException sqle) {
+      rollbackQuietly(c);
+      throw new RuntimeException("Could not get done user list: "
+        + "SQLException: " + sqle.getMessage(), sqle);
+    } finally {
+      Utils.closeQuietly(rs);
+      Utils.closeQuietly(ps);
+      try {
+        if (c != null)
+          c.setAutoCommit(true);
+      } catch (SQLException sqle) {
+      }
+      Utils.closeQuietly(c);
+    }
+  }
+
   protected void markUserDone(String username, String payload)
   {
     Connection c = null;
@@ -161,11 +402,123 @@ public class MTSImplPostgres implements MigrationTrackingStore
 
   public void markUserDone(String username)
   {
+    flushMigrations(username);
     markUserDone(username, new Date().toString());
   }
 
   public void recordMigration(String username, String fingerprint, int size,
     String payload)
+  {
+    if (!writeBehind) {
+      insertMigration(username, fingerprint, size, payload);
+      return;
+    }
+    List<MailRecord> full = null;
+    synchronized (buffers) {
+      MailBuffer mb = buffers.get(username);
+      if (mb == null) {
+        mb = new MailBuffer();
+        buffers.put(username, mb);
+      }
+      mb.records.add(new MailRecord(fingerprint, size, payload));
+      if (mb.records.size() >= batchSize) {
+        buffers.remove(username);
+        full = mb.records;
+        beginFlush(username);
+      }
+    }
+    if (full != null) {
+      try {
+        insertMigrations(username, full);
+      } catch (RuntimeException re) {
+        requeueMigrations(username, full);
+        throw re;
+      } finally {
+        endFlush(username);
+      }
+    }
+  }
+
+  /**
+   * Insert the user's buffered records, and wait for any batch of theirs
+   * another thread is inserting, so that whatever the caller records next
+   * (a checkpoint, say) cannot commit before the migrations it covers.
+   */
+  public void flushMigrations(String username)
+  {
+    MailBuffer mb;
+    synchronized (buffers) {
+      while (inFlight.containsKey(username)) {
+        try {
+          buffers.wait();
+        } catch (InterruptedException ex) {
+        }
+      }
+      mb = buffers.remove(username);
+      if (mb == null)
+        return;
+      beginFlush(username);
+    }
+    try {
+      insertMigrations(username, mb.records);
+    } catch (RuntimeException re) {
+      requeueMigrations(username, mb.records);
+      throw re;
+    } finally {
+      endFlush(username);
+    }
+  }
+
+  /**
+   * Note a batch of the user's records taken out of buffers, which must be
+   * held.
+   */
+  private void beginFlush(String username)
+  {
+    Integer n = inFlight.get(username);
+    inFlight.put(username, n == null ? 1 : n + 1);
+  }
+
+  private void endFlush(String username)
+  {
+    synchronized (buffers) {
+      int n = inFlight.get(username);
+      if (n == 1)
+        inFlight.remove(username);
+      else
+        inFlight.put(username, n - 1);
+      buffers.notifyAll();
+    }
+  }
+
+  private void flushAllMigrations()
+  {
+    Set<String> users;
+    synchronized (buffers) {
+      users = new HashSet<String>(buffers.keySet());
+    }
+    for (String username : users)
+      flushMigrations(username);
+  }
+
+  /**
+   * Put records back after a failed background flush so that a later flush
+   * (or close()) can try again.
+   */
+  private void requeueMigrations(String username, List<MailRecord> records)
+  {
+    synchronized (buffers) {
+      MailBuffer mb = buffers.get(username);
+      if (mb == null) {
+        mb = new MailBuffer();
+        buffers.put(username, mb);
+      }
+      mb.records.addAll(0, records);
+    }
+  }
+
+  private void insertMigration(String username, String fingerprint, int size,
+    String payload)
   {
     Connection c = null;
     PreparedStatement ps = null;
@@ -173,11 +526,7 @@ public class MTSImplPostgres implements MigrationTrackingStore
       c = pool.getConnection();
       c.setAutoCommit(true);
 
-      String query = ""
-        + "INSERT INTO MAILS "
-        + "   (USERNAME, FINGERPRINT, MAILSIZE, PAYLOAD) "
-        + "   VALUES (?, ?, ?, ?) ";
-      ps = c.prepareStatement(query);
+      ps = c.prepareStatement(INSERT_MAIL);
       ps.setString(1, username);
       ps.setString(2, fingerprint);
       ps.setInt(3, size);
@@ -188,7 +537,7 @@ public class MTSImplPostgres implements MigrationTrackingStore
         // System.err.println("SQL Exception was OK, 23505 is UNIQUE VIOLATION");
         return;
       }
-      throw new RuntimeException("Could not set user donelist status for "
+      throw new RuntimeException("Could not record migration for "
         + username + ": SQLException: " + sqle.getMessage(), sqle);
     } finally {
       Utils.closeQuietly(ps);
@@ -196,7 +545,161 @@ public class MTSImplPostgres implements MigrationTrackingStore
     }
   }
 
-  public void log(String system, String username, String payload)
+  /**
+   * Insert a user's buffered records as one JDBC batch in one transaction.
+   * If any of them is already in the table the whole batch is rolled back
+   * and the records are inserted one by one, so that the duplicates can be
+   * ignored the same way insertMigration() does.
+   */
+  private void insertMigrations(String username, List<MailRecord> records)
+  {
+    Connection c = null;
+    PreparedStatement ps = null;
+    boolean duplicate = false;
+    try {
+      c = pool.getConnection();
+      c.setAutoCommit(false);
+
+      ps = c.prepareStatement(INSERT_MAIL);
+      for (MailRecord mr : records) {
+        ps.setString(1, username);
+        ps.setString(2, mr.fingerprint);
+        ps.setInt(3, mr.size);
+        ps.setString(4, mr.payload);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      c.commit();
+    } catch (SQLException sqle) {
+      rollbackQuietly(c);
+      if (!isUniqueViolation(sqle))
+        throw new RuntimeException("Could not record " + records.size()
+          + " migrations for " + username + ": SQLException: "
+          + sqle.getMessage(), sqle);
+      duplicate = true;
+    } finally {
+      Utils.closeQuietly(ps);
+      try {
+        if (c != null)
+          c.setAutoCommit(true);
+      } catch (SQLException sqle) {
+      }
+      Utils.closeQuietly(c);
+    }
+
+    if (duplicate) {
+      for (MailRecord mr : records)
+        insertMigration(username, mr.fingerprint, mr.size, mr.payload);
+    }
+  }
+
+  private static boolean isUniqueViolation(SQLException sqle)
+  {
+    // Batch failures carry the real cause further down the chain.
+    for (SQLException e = sqle; e != null; e = e.getNextException()) {
+      if ("23505".equals(e.getSQLState()))
+        return true;
+    }
+    return false;
+  }
+
+  private static void rollbackQuietly(Connection c)
+  {
+    try {
+      if (c != null)
+        c.rollback();
+    } catch (Throwable t) {
+    }
+  }
+
+  /**
+   * Flushes buffers whose oldest record has waited longer than maxDelay, so
+   * that a slow trickle of copies still reaches the database promptly.
+   */
+  private class Flusher extends Thread
+  {
+    Flusher()
+    {
+      setName("MTS-Flusher");
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run()
+    {
+      while (!closed) {
+        try {
+          Thread.sleep(Math.max(maxDelay / 2, 100));
+        } catch (InterruptedException ie) {
+          return;
+        }
+        long cutoff = System.currentTimeMillis() - maxDelay;
+        Map<String, List<MailRecord>> due
+          = new HashMap<String, List<MailRecord>>();
+        synchronized (buffers) {
+          Iterator<Map.Entry<String, MailBuffer>> i
+            = buffers.entrySet().iterator();
+          while (i.hasNext()) {
+            Map.Entry<String, MailBuffer> e = i.next();
+            if (e.getValue().firstAdded <= cutoff) {
+              due.put(e.getKey(), e.getValue().records);
+              i.remove();
+              beginFlush(e.getKey());
+            }
+          }
+        }
+        for (Map.Entry<String, List<MailRecord>> e : due.entrySet()) {
+          try {
+            insertMigrations(e.getKey(), e.getValue());
+          } catch (RuntimeException re) {
+            System.err.println("WARNING: MTS write-behind flush failed for "
+              + e.getKey() + ", will retry: " + re.getMessage());
+            requeueMigrations(e.getKey(), e.getValue());
+          } finally {
+            endFlush(e.getKey());
+          }
+        }
+      }
+    }
+  }
+
+  public FolderCheckpoint getCheckpoint(String username, String folder)
+  {
+    Connection c = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      c = pool.getConnection();
+
+      String query = ""
+        + "SELECT "
+        + "   UIDVALIDITY, HIGHUID, HIGHESTMODSEQ "
+        + "FROM "
+        + "   FOLDERSTATE "
+        + "WHERE "
+        + "   USERNAME = ? AND FOLDER = ? ";
+      ps = c.prepareStatement(query);
+      ps.setString(1, username);
+      ps.setString(2, folder);
+      rs = ps.executeQuery();
+      if (!rs.next())
+        return null;
+      return new FolderCheckpoint(rs.getLong(1), rs.getLong(2),
+        rs.getLong(3));
+    } catch (SQLException sqle) {
+      throw new RuntimeException("Could not get folder checkpoint for "
+        + username + " (" + folder + "): SQLException: " + sqle.getMessage(),
+        sqle);
+    } finally {
+      Utils.closeQuietly(rs);
+      Utils.closeQuietly(ps);
+      Utils.closeQuietly(c);
+    }
+  }
+
+  public void saveCheckpoint(String username, String folder,
+    FolderCheckpoint cp)
   {
     Connection c = null;
     PreparedStatement ps = null;
@@ -204,18 +707,209 @@ public class MTSImplPostgres implements MigrationTrackingStore
       c = pool.getConnection();
       c.setAutoCommit(true);
 
+      // No UPSERT in PostgreSQL 8.4, so UPDATE and INSERT if there was
+      //   nothing to update.  Only one worker handles a given user at a
+      //   time, so the two cannot race.
       String query = ""
-        + "INSERT INTO LOG "
-        + "   (SYSTEM, USERNAME, PAYLOAD) "
-        + "   VALUES (?, ?, ?) ";
+        + "UPDATE FOLDERSTATE "
+        + "   SET UIDVALIDITY = ?, HIGHUID = ?, HIGHESTMODSEQ = ? "
+        + "   WHERE USERNAME = ? AND FOLDER = ? ";
+      ps = c.prepareStatement(query);
+      ps.setLong(1, cp.uidValidity);
+      ps.setLong(2, cp.highUid);
+      ps.setLong(3, cp.highestModSeq);
+      ps.setString(4, username);
+      ps.setString(5, folder);
+      if (ps.executeUpdate() > 0)
+        return;
+      Utils.closeQuietly(ps);
+
+      query = ""
+        + "INSERT INTO FOLDERSTATE "
+        + "   (USERNAME, FOLDER, UIDVALIDITY, HIGHUID, HIGHESTMODSEQ) "
+        + "   VALUES (?, ?, ?, ?, ?) ";
       ps = c.prepareStatement(query);
-      ps.setString(1, system);
-      ps.setString(2, username);
-      ps.setString(3, payload);
+      ps.setString(1, username);
+      ps.setString(2, folder);
+      ps.setLong(3, cp.uidValidity);
+      ps.setLong(4, cp.highUid);
+      ps.setLong(5, cp.highestModSeq);
+      int uc = ps.executeUpdate();
+    } catch (SQLException sqle) {
+      throw new RuntimeException("Could not save folder checkpoint for "
+        + username + " (" + folder + "): SQLException: " + sqle.getMessage(),
+        sqle);
+    } finally {
+      Utils.closeQuietly(ps);
+      Utils.closeQuietly(c);
+    }
+  }
+
+  /**
+   * UPDATE every pair as one batch, then INSERT, as a second, those the
+   * UPDATE found no row for; all in one transaction.
+   */
+  public void recordUidMap(String username, String folder, UidMap map)
+  {
+    if (map.size() == 0)
+      return;
+    Connection c = null;
+    PreparedStatement ps = null;
+    try {
+      c = pool.getConnection();
+      c.setAutoCommit(false);
+
+      String query = ""
+        + "UPDATE UIDMAP "
+        + "   SET DSTUIDVALIDITY = ?, DSTUID = ? "
+        + "   WHERE USERNAME = ? AND FOLDER = ? AND SRCUIDVALIDITY = ? "
+        + "   AND SRCUID = ? ";
+      ps = c.prepareStatement(query);
+      for (int i = 0; i < map.size(); i++) {
+        ps.setLong(1, map.dstUidValidity);
+        ps.setLong(2, map.getDstUid(i));
+        ps.setString(3, username);
+        ps.setString(4, folder);
+        ps.setLong(5, map.srcUidValidity);
+        ps.setLong(6, map.getSrcUid(i));
+        ps.addBatch();
+      }
+      int[] counts = ps.executeBatch();
+      Utils.closeQuietly(ps);
+
+      query = ""
+        + "INSERT INTO UIDMAP "
+        + "   (USERNAME, FOLDER, SRCUIDVALIDITY, SRCUID, DSTUIDVALIDITY, "
+        + "   DSTUID) "
+        + "   VALUES (?, ?, ?, ?, ?, ?) ";
+      ps = c.prepareStatement(query);
+      int inserts = 0;
+      // a message copied twice is in the map twice; the later copy wins
+      Set<Long> seen = new HashSet<Long>();
+      for (int i = map.size() - 1; i >= 0; i--) {
+        // a driver may report SUCCESS_NO_INFO, which is negative
+        if (counts[i] != 0 || !seen.add(map.getSrcUid(i)))
+          continue;
+        ps.setString(1, username);
+        ps.setString(2, folder);
+        ps.setLong(3, map.srcUidValidity);
+        ps.setLong(4, map.getSrcUid(i));
+        ps.setLong(5, map.dstUidValidity);
+        ps.setLong(6, map.getDstUid(i));
+        ps.addBatch();
+        inserts++;
+      }
+      if (inserts > 0)
+        ps.executeBatch();
+      c.commit();
+    } catch (SQLException sqle) {
+      rollbackQuietly(c);
+      throw new RuntimeException("Could not record " + map.size()
+        + " UID mappings for " + username + " (" + folder + "): SQLException: "
+        + sqle.getMessage(), sqle);
+    } finally {
+      Utils.closeQuietly(ps);
+      try {
+        if (c != null)
+          c.setAutoCommit(true);
+      } catch (SQLException sqle) {
+      }
+      Utils.closeQuietly(c);
+    }
+  }
+
+  public UidMap getUidMap(String username, String folder,
+    long srcUidValidity, long dstUidValidity)
+  {
+    Connection c = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    try {
+      c = pool.getConnection();
+      // streamed through a cursor, as in getMigratedForUser()
+      c.setAutoCommit(false);
+
+      String query = ""
+        + "SELECT "
+        + "   SRCUID, DSTUID "
+        + "FROM "
+        + "   UIDMAP "
+        + "WHERE "
+        + "   USERNAME = ? AND FOLDER = ? AND SRCUIDVALIDITY = ? "
+        + "   AND DSTUIDVALIDITY = ? ";
+      ps = c.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+        ResultSet.CONCUR_READ_ONLY);
+      ps.setFetchSize(5000);
+      ps.setString(1, username);
+      ps.setString(2, folder);
+      ps.setLong(3, srcUidValidity);
+      ps.setLong(4, dstUidValidity);
+      rs = ps.executeQuery();
+      UidMap map = new UidMap(srcUidValidity, dstUidValidity);
+      while (rs.next())
+        map.put(rs.getLong(1), rs.getLong(2));
+      c.commit();
+      return map;
+    } catch (SQLException sqle) {
+      rollbackQuietly(c);
+      throw new RuntimeException("Could not get UID mappings for "
+        + username + " (" + folder + "): SQLException: " + sqle.getMessage(),
+        sqle);
+    } finally {
+      Utils.closeQuietly(rs);
+      Utils.closeQuietly(ps);
+      try {
+        if (c != null)
+          c.setAutoCommit(true);
+      } catch (SQLException sqle) {
+      }
+      Utils.closeQuietly(c);
+    }
+  }
+
+  public void log(String system, String username, String payload)
+  {
+    if (closed || logWriter == null || !logWriter.isAlive()) {
+      insertLog(new LogEntry(system, username, payload));
+      return;
+    }
+    LogEntry e = new LogEntry(system, username, payload);
+    if (dropLogWhenFull) {
+      if (!logQueue.offer(e)) {
+        logDropped.incrementAndGet();
+        return;
+      }
+    } else {
+      try {
+        logQueue.put(e);
+      } catch (InterruptedException ex) {
+        logDropped.incrementAndGet();
+        return;
+      }
+    }
+    // If close() came in meanwhile the writer may have drained the queue
+    //   and gone; whichever of us takes the entry out writes it.
+    if (closed && logQueue.remove(e))
+      insertLog(e);
+  }
+
+  private void insertLog(LogEntry e)
+  {
+    Connection c = null;
+    PreparedStatement ps = null;
+    try {
+      c = pool.getConnection();
+      c.setAutoCommit(true);
+
+      ps = c.prepareStatement(INSERT_LOG);
+      ps.setTimestamp(1, e.when);
+      ps.setString(2, e.system);
+      ps.setString(3, e.username);
+      ps.setString(4, e.payload);
       int uc = ps.executeUpdate();
     } catch (SQLException sqle) {
       throw new RuntimeException("Could not add log message: (" +
-        system + ", " + username + ", " + payload + ") " +
+        e.system + ", " + e.username + ", " + e.payload + ") " +
         ": SQLException: " + sqle.getMessage(), sqle);
     } finally {
       Utils.closeQuietly(ps);
@@ -223,4 +917,80 @@ public class MTSImplPostgres implements MigrationTrackingStore
     }
   }
 
+  private void insertLogs(List<LogEntry> entries)
+  {
+    Connection c = null;
+    PreparedStatement ps = null;
+    try {
+      c = pool.getConnection();
+      c.setAutoCommit(false);
+
+      ps = c.prepareStatement(INSERT_LOG);
+      for (LogEntry e : entries) {
+        ps.setTimestamp(1, e.when);
+        ps.setString(2, e.system);
+        ps.setString(3, e.username);
+        ps.setString(4, e.payload);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      c.commit();
+    } catch (SQLException sqle) {
+      rollbackQuietly(c);
+      throw new RuntimeException("Could not add " + entries.size()
+        + " log messages: SQLException: " + sqle.getMessage(), sqle);
+    } finally {
+      Utils.closeQuietly(ps);
+      try {
+        if (c != null)
+          c.setAutoCommit(true);
+      } catch (SQLException sqle) {
+      }
+      Utils.closeQuietly(c);
+    }
+  }
+
+  /**
+   * Batch-inserts queued log entries until the store is closed and the queue
+   * has drained.  Entries that cannot be written are counted as dropped.
+   */
+  private class LogWriter extends Thread
+  {
+    LogWriter()
+    {
+      setName("MTS-LogWriter");
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run()
+    {
+      List<LogEntry> batch = new ArrayList<LogEntry>();
+      for (;;) {
+        LogEntry e;
+        try {
+          e = logQueue.poll(250, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+          e = null;
+        }
+        if (e == null) {
+          if (closed && logQueue.isEmpty())
+            return;
+          continue;
+        }
+        batch.clear();
+        batch.add(e);
+        logQueue.drainTo(batch, LOG_BATCH_MAX - 1);
+        try {
+          insertLogs(batch);
+        } catch (RuntimeException re) {
+          logDropped.addAndGet(batch.size());
+          System.err.println("WARNING: Dropped " + batch.size()
+            + " MTS log entries: " + re.getMessage());
+        }
+      }
+    }
+  }
+
 }
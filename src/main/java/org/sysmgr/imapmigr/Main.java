@@ -18,7 +18,7 @@ public class Main
     Properties p = Utils.loadPropertiesFromClasspath(bspath
       + "/buildstamp.properties");
     System.err.println("Usage: " + p.getProperty("pom.name")
-      + " -p <config.properties> <command>");
+      + " -p <config.properties> [-f] <command>");
     System.err.println("Version: " + p.getProperty("pom.version"));
   }
 
@@ -26,6 +26,7 @@ public class Main
   {
     Options o = new Options();
     o.addOption("p", "props", true, "Name of configuration properties file");
+    o.addOption("f", "force", false, "Sync accounts already marked done too");
 
     CommandLineParser clp = new GnuParser();
     CommandLine cl = clp.parse(o, argv);
@@ -64,7 +65,24 @@ public class Main
        */
       for (int q = 2; q < cl.getArgs().length; q++)
         accs.add(cl.getArgs()[q]);
-      a = new IMAPSyncAction(n, numthr, accs);
+      a = new IMAPSyncAction(n, numthr, accs, cl.hasOption("force"));
+    }
+
+    if (isCommand(cl, "plan")) {
+      int numthr;
+      try {
+        numthr = Integer.parseInt(cl.getArgs()[1]);
+      } catch (Throwable t) {
+        printUsage();
+        System.err.println("ERROR: plan requires a thread count as an "
+          + "argument!");
+        System.exit(3);
+        return;
+      }
+      Set<String> accs = new HashSet<String>();
+      for (int q = 2; q < cl.getArgs().length; q++)
+        accs.add(cl.getArgs()[q]);
+      a = new PlanAction(n, numthr, accs);
     }
 
     if (a == null) {
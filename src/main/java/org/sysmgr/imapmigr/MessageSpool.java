@@ -0,0 +1,130 @@
+package org.sysmgr.imapmigr;
+
+import com.sun.mail.util.CRLFOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Temporary files for messages too big to serialise in memory.  A message of
+ * at least the threshold size is written out to the spool directory and
+ * APPENDed from there, and only so many may be spooled at once across every
+ * account; the rest wait their turn.  Anything smaller is handled in memory
+ * as before.
+ */
+public class MessageSpool
+{
+  private static long threshold = 16 * 1024 * 1024;
+  private static File dir = null;
+  private static Semaphore slots = new Semaphore(2, true);
+
+  /**
+   * @param threshold Size from which messages are spooled, 0 for never.
+   * @param maxConcurrent Messages that may be spooled at once.
+   * @param dir Where to put them, or null for the system temp directory.
+   */
+  public static synchronized void configure(long threshold,
+    int maxConcurrent, File dir)
+  {
+    if (maxConcurrent < 1)
+      throw new IllegalArgumentException("At least one message must be"
+        + " allowed in the spool.");
+    MessageSpool.threshold = threshold;
+    MessageSpool.dir = dir;
+    slots = new Semaphore(maxConcurrent, true);
+  }
+
+  /**
+   * Whether a message of this size (RFC822.SIZE) should be spooled.
+   */
+  public static synchronized boolean isLarge(long size)
+  {
+    return threshold > 0 && size >= threshold;
+  }
+
+  /**
+   * Wait for a slot, then write the message out as JavaMail would APPEND
+   * it.  The result must be released once sent.
+   */
+  public static MessageSpool spool(Message m) throws IOException,
+    MessagingException
+  {
+    Semaphore s;
+    File d;
+    synchronized (MessageSpool.class) {
+      s = slots;
+      d = dir;
+    }
+    s.acquireUninterruptibly();
+    MessageSpool ms = new MessageSpool(s);
+    try {
+      long begin = System.nanoTime();
+      ms.file = File.createTempFile("imapsync", ".eml", d);
+      OutputStream os = new CRLFOutputStream(new BufferedOutputStream(
+        new FileOutputStream(ms.file), 65536));
+      try {
+        m.writeTo(os);
+        os.flush();
+      } finally {
+        os.close();
+      }
+      Metrics.record(Metrics.FETCH_BODY, begin);
+      return ms;
+    } catch (IOException ex) {
+      ms.release();
+      throw ex;
+    } catch (MessagingException ex) {
+      ms.release();
+      throw ex;
+    } catch (RuntimeException ex) {
+      ms.release();
+      throw ex;
+    }
+  }
+
+  private Semaphore slot;
+  private File file;
+
+  private MessageSpool(Semaphore slot)
+  {
+    this.slot = slot;
+  }
+
+  public long size()
+  {
+    return file.length();
+  }
+
+  public void writeTo(OutputStream os) throws IOException
+  {
+    InputStream is = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[65536];
+      int n;
+      while ((n = is.read(buf)) > 0)
+        os.write(buf, 0, n);
+    } finally {
+      Utils.closeQuietly(is);
+    }
+  }
+
+  /**
+   * Delete the file and give up the slot.  Safe to call more than once.
+   */
+  public synchronized void release()
+  {
+    if (slot == null)
+      return;
+    if (file != null && !file.delete())
+      file.deleteOnExit();
+    slot.release();
+    slot = null;
+  }
+}
@@ -0,0 +1,178 @@
+package org.sysmgr.imapmigr;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide latency histograms for the operations a sync spends its time
+ * in, and message/byte counters per server and overall.  Once registerMBeans()
+ * has been called every histogram and counter, including ones created later,
+ * is also visible over JMX under org.sysmgr.imapmigr.
+ */
+public class Metrics
+{
+  public static final String CONNECT = "connect";
+  public static final String FOLDER_OPEN = "folder.open";
+  public static final String FETCH_ENVELOPE = "fetch.envelope";
+  public static final String FETCH_BODY = "fetch.body";
+  public static final String APPEND = "append";
+
+  private static final ConcurrentHashMap<String, LatencyHistogram> latencies
+    = new ConcurrentHashMap<String, LatencyHistogram>();
+  private static final ConcurrentHashMap<String, TransferCounter> counters
+    = new ConcurrentHashMap<String, TransferCounter>();
+  private static final TransferCounter total = counter("total");
+  private static volatile boolean jmx = false;
+
+  /**
+   * Counts at the last dump(), for per-interval rates.
+   */
+  private static final Map<String, long[]> lastDump
+    = new HashMap<String, long[]>();
+  private static long lastDumpTime = System.currentTimeMillis();
+
+  public static LatencyHistogram latency(String op)
+  {
+    LatencyHistogram h = latencies.get(op);
+    if (h == null) {
+      LatencyHistogram nh = new LatencyHistogram(op);
+      h = latencies.putIfAbsent(op, nh);
+      if (h == null) {
+        h = nh;
+        if (jmx)
+          register("Latency", op, h);
+      }
+    }
+    return h;
+  }
+
+  /**
+   * Record an operation that started at begin, a System.nanoTime() value.
+   */
+  public static void record(String op, long begin)
+  {
+    latency(op).recordSince(begin);
+  }
+
+  /**
+   * Count one message copied from one server to another.
+   */
+  public static void copied(String srcHost, String dstHost, long size)
+  {
+    counter("src:" + srcHost).add(size);
+    counter("dst:" + dstHost).add(size);
+    total.add(size);
+  }
+
+  private static TransferCounter counter(String name)
+  {
+    TransferCounter c = counters.get(name);
+    if (c == null) {
+      TransferCounter nc = new TransferCounter(name);
+      c = counters.putIfAbsent(name, nc);
+      if (c == null) {
+        c = nc;
+        if (jmx)
+          register("Transfer", name, c);
+      }
+    }
+    return c;
+  }
+
+  public static synchronized void registerMBeans()
+  {
+    if (jmx)
+      return;
+    jmx = true;
+    for (LatencyHistogram h : latencies.values())
+      register("Latency", h.getName(), h);
+    for (TransferCounter c : counters.values())
+      register("Transfer", c.getName(), c);
+  }
+
+  private static void register(String type, String name, Object mbean)
+  {
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName on = new ObjectName("org.sysmgr.imapmigr:type=" + type
+        + ",name=" + ObjectName.quote(name));
+      if (!mbs.isRegistered(on))
+        mbs.registerMBean(mbean, on);
+    } catch (Exception ex) {
+      throw new RuntimeException("Could not register " + type + " MBean for "
+        + name + ": " + ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * Print every histogram, and every counter with its rate since the last
+   * dump, one per line.
+   */
+  public static synchronized void dump(PrintWriter pw)
+  {
+    long now = System.currentTimeMillis();
+    double secs = Math.max(1, now - lastDumpTime) / 1000.0;
+    lastDumpTime = now;
+
+    List<String> names = new ArrayList<String>(latencies.keySet());
+    Collections.sort(names);
+    for (String op : names)
+      pw.println("METRICS: latency " + latencies.get(op));
+
+    names = new ArrayList<String>(counters.keySet());
+    Collections.sort(names);
+    for (String name : names) {
+      TransferCounter c = counters.get(name);
+      long m = c.getMessages();
+      long b = c.getBytes();
+      long[] last = lastDump.get(name);
+      if (last == null)
+        last = new long[2];
+      pw.println("METRICS: transfer " + name + " messages=" + m + " bytes="
+        + b + " msgs/s=" + Math.round((m - last[0]) / secs) + " bytes/s="
+        + Math.round((b - last[1]) / secs));
+      lastDump.put(name, new long[] { m, b });
+    }
+  }
+
+  /**
+   * Dumps the metrics to a log every so often until interrupted.
+   */
+  public static class Reporter extends Thread
+  {
+    private PrintWriter pw;
+    private long interval;
+
+    /**
+     * @param interval Milliseconds between dumps.
+     */
+    public Reporter(PrintWriter pw, long interval)
+    {
+      this.pw = pw;
+      this.interval = interval;
+      setName("Metrics");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      for (;;) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException ex) {
+          return;
+        }
+        dump(pw);
+      }
+    }
+  }
+}
@@ -9,11 +9,54 @@ public interface MigrationTrackingStore extends Closeable
 
   boolean isUserDone(String username);
   void markUserDone(String username);
+  /**
+   * @return Every user marked done, read in one go.
+   */
+  Set<String> getDoneUsers();
 
   void recordMigration(String username, String fingerprint, int size,
     String payload);
   boolean isMigrated(String username, String fingerprint);
-  Set<String> getMigratedForUser(String username);
+  /**
+   * Make sure every recordMigration() call made so far for this user has
+   * reached stable storage.  A no-op unless the store buffers writes.
+   */
+  void flushMigrations(String username);
+  FingerprintSet getMigratedForUser(String username);
+  /**
+   * @return How many messages, and how many bytes of them, are recorded as
+   *   migrated for this user.
+   */
+  UserTotals getMigratedTotals(String username);
+
+  /**
+   * @return The checkpoint saved for this user's source folder, or null if
+   *   there is none.
+   */
+  FolderCheckpoint getCheckpoint(String username, String folder);
+  void saveCheckpoint(String username, String folder, FolderCheckpoint cp);
+
+  /**
+   * Note where in the destination messages copied from a source folder
+   * ended up.  A source UID already mapped under the same UIDVALIDITY is
+   * mapped afresh.
+   */
+  void recordUidMap(String username, String folder, UidMap map);
+  /**
+   * @return Every mapping recorded for the source folder under these
+   *   UIDVALIDITYs, possibly none.
+   */
+  UidMap getUidMap(String username, String folder, long srcUidValidity,
+    long dstUidValidity);
 
   void log(String system, String username, String payload);
+  /**
+   * Log entries lost, either dropped because the log queue was full or
+   * because they could not be written.
+   */
+  long getLogDropped();
+  /**
+   * Log entries accepted but not yet written.
+   */
+  int getLogBacklog();
 }
@@ -33,6 +33,28 @@ public class Nexus
     }
   }
 
+  public String ps(String name, String defval)
+  {
+    String val = config.getProperty(name);
+    if (val == null)
+      return defval;
+    return val;
+  }
+
+  public int pi(String name, int defval)
+  {
+    if (config.getProperty(name) == null)
+      return defval;
+    return pi(name);
+  }
+
+  public boolean pb(String name, boolean defval)
+  {
+    if (config.getProperty(name) == null)
+      return defval;
+    return pb(name);
+  }
+
   public boolean pb(String name)
   {
     String val = ps(name);
@@ -47,17 +69,72 @@ public class Nexus
   public MigrationTrackingStore getMigrationTrackingStore()
   {
     if (mts == null) {
-      mts = new MTSImplPostgres(
+      String type = ps("mts.type", "postgres");
+      if (type.equalsIgnoreCase("local")) {
+        mts = new InstrumentedMTS(new MTSImplLocal(
+          new File(ps("mts.local.dir")),
+          pi("mts.local.segmentsize", 64 * 1024 * 1024),
+          pi("mts.local.syncinterval", 1000),
+          pi("mts.local.compactinterval", 60000),
+          pi("mts.local.compactpercent", 50)));
+        return mts;
+      }
+      if (!type.equalsIgnoreCase("postgres"))
+        throw new RuntimeException("Must specify postgres or local for "
+          + "'mts.type' in properties file.");
+      MTSImplPostgres pg = new MTSImplPostgres(
         ps("mts.hostname"),
         pi("mts.port"),
         ps("mts.dbname"),
         ps("mts.username"),
         ps("mts.password"),
         pi("mts.maxconns"));
+      if (pb("mts.writebehind", false))
+        pg.setWriteBehind(pi("mts.writebehind.batchsize", 200),
+          pi("mts.writebehind.maxdelay", 5000));
+      if (pb("mts.log.async", true)) {
+        String policy = ps("mts.log.policy", "block");
+        if (!policy.equalsIgnoreCase("block")
+            && !policy.equalsIgnoreCase("drop"))
+          throw new RuntimeException("Must specify block or drop for "
+            + "'mts.log.policy' in properties file.");
+        pg.setAsyncLog(pi("mts.log.queuesize", 10000),
+          policy.equalsIgnoreCase("drop"));
+      }
+      mts = new InstrumentedMTS(pg);
     }
     return mts;
   }
 
+  /**
+   * Connection details for one account on the "src" or "dst" server.
+   */
+  public IMAPSync.ServerDetails getServerDetails(String pfx, String username)
+  {
+    String un = ps(pfx + ".userpattern").replaceAll("%%USER%%", username);
+    String admin = ps(pfx + ".proxyauth.admin", null);
+    IMAPSync.ServerDetails sd;
+    if (admin == null) {
+      sd = new IMAPSync.ServerDetails(ps(pfx + ".hostname"), un,
+        ps(pfx + ".password"), pb(pfx + ".usessl"));
+    } else {
+      sd = new IMAPSync.ServerDetails(ps(pfx + ".hostname"), admin,
+        ps(pfx + ".password"), un, pb(pfx + ".usessl"));
+      sd.setReuse(pb(pfx + ".proxyauth.reuse", false));
+    }
+    sd.setPort(pi(pfx + ".port", -1));
+    return sd;
+  }
+
+  /**
+   * Use this store rather than the one the properties describe, e.g. an
+   * in-memory one for benchmarks.
+   */
+  public void setMigrationTrackingStore(MigrationTrackingStore mts)
+  {
+    this.mts = mts;
+  }
+
   public Map<String, AccountListLine> getAccountList()
   {
     if (accountList == null) {
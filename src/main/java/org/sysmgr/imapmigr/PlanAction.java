@@ -0,0 +1,307 @@
+package org.sysmgr.imapmigr;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.ListInfo;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.mail.MessagingException;
+
+/**
+ * Estimates how much work an imapsync run has left without running one.
+ * For each account the source folder tree is LISTed and every folder STATUSed
+ * (nothing is SELECTed), and the totals compared with what the MTS says has
+ * been migrated already.  One tab-separated line per account goes to the
+ * plan.filename file:
+ *
+ *   account, folders, messages, migrated, messages left, bytes left, status
+ *
+ * Bytes come from STATUS SIZE where the server has it, otherwise from the
+ * account's average migrated message size, or plan.avgsize for an account
+ * with nothing migrated yet.
+ */
+public class PlanAction implements Action
+{
+  /**
+   * STATUS of one source folder.
+   */
+  static class FolderStatus
+  {
+    String name;
+    long messages = 0;
+    long uidNext = -1;
+    long uidValidity = -1;
+    long size = -1;
+  }
+
+  private Nexus n;
+  private MigrationTrackingStore mts;
+  private Map<String, AccountListLine> al;
+  private Set<String> accountIds;
+  private int maxThreads;
+  private long avgSize;
+  private boolean checkpoints;
+  private PrintWriter out;
+  private Iterator<AccountListLine> todo;
+  private Set<String> done;
+  private long totalMessages = 0;
+  private long totalBytes = 0;
+  private int failed = 0;
+
+  public PlanAction(Nexus n, int maxThreads, Set<String> accountIds)
+  {
+    this.n = n;
+    this.maxThreads = maxThreads;
+    if (accountIds != null && accountIds.size() > 0)
+      this.accountIds = accountIds;
+    al = n.getAccountList();
+    mts = n.getMigrationTrackingStore();
+    avgSize = n.pi("plan.avgsize", 65536);
+    checkpoints = n.pb("imap.checkpoints", false);
+    initOutput();
+  }
+
+  private void initOutput()
+  {
+    String fn = n.ps("plan.filename").replaceAll("%%DATE%%",
+      new SimpleDateFormat("yyyyMMdd.HHmmss").format(new Date()));
+    File f = new File(fn);
+    if (f.exists()) {
+      throw new RuntimeException("Will not overwrite existing plan file: "
+        + f.getName());
+    }
+    try {
+      out = new PrintWriter(new FileOutputStream(f, false), true);
+    } catch (FileNotFoundException ex) {
+      throw new RuntimeException("Could not create plan file '" + fn + "'",
+        ex);
+    }
+    out.println("#account\tfolders\tmessages\tmigrated\tleft\tbytesleft"
+      + "\tstatus");
+  }
+
+  public void doAction()
+  {
+    List<AccountListLine> accounts = new ArrayList<AccountListLine>();
+    for (AccountListLine all : al.values()) {
+      if (accountIds != null && !accountIds.contains(all.canonicalUsername))
+        continue;
+      accounts.add(all);
+    }
+    if (accountIds != null && accounts.size() != accountIds.size())
+      throw new RuntimeException("Not every account given was found in the"
+        + " account list file.");
+    done = mts.getDoneUsers();
+    todo = accounts.iterator();
+
+    Thread[] threads = new Thread[Math.max(1, Math.min(maxThreads,
+      accounts.size()))];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run()
+        {
+          AccountListLine all;
+          while ((all = next()) != null)
+            plan(all);
+        }
+      });
+      threads[i].setName("Planner-" + i);
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      while (t.isAlive()) {
+        try {
+          t.join();
+        } catch (InterruptedException ex) {
+        }
+      }
+    }
+
+    out.println("#total\t\t\t\t" + totalMessages + "\t" + totalBytes + "\t"
+      + (failed == 0 ? "ok" : failed + " accounts failed"));
+  }
+
+  public void close()
+  {
+    Utils.closeQuietly(out);
+    Utils.closeQuietly(mts);
+  }
+
+  private synchronized AccountListLine next()
+  {
+    return todo.hasNext() ? todo.next() : null;
+  }
+
+  private void plan(AccountListLine all)
+  {
+    String user = all.canonicalUsername;
+    IMAPSync.ServerDetails sd = n.getServerDetails("src", all.srcUsername);
+    IMAPStore store = null;
+    try {
+      store = sd.connect();
+      List<FolderStatus> folders = getFolderStatus(store);
+      sd.release(store);
+      store = null;
+
+      UserTotals migrated = mts.getMigratedTotals(user);
+      long messages = 0;
+      long size = 0;
+      boolean haveSize = true;
+      long sinceCheckpoint = 0;
+      boolean allCheckpointed = checkpoints;
+      for (FolderStatus fs : folders) {
+        messages += fs.messages;
+        if (fs.size < 0)
+          haveSize = false;
+        else
+          size += fs.size;
+        if (allCheckpointed) {
+          FolderCheckpoint cp = mts.getCheckpoint(user, fs.name);
+          if (cp == null || cp.uidValidity != fs.uidValidity
+              || fs.uidNext < 0) {
+            allCheckpointed = false;
+          } else {
+            // at most every UID handed out since the checkpoint is new
+            sinceCheckpoint += Math.min(fs.messages,
+              Math.max(0, fs.uidNext - 1 - cp.highUid));
+          }
+        }
+      }
+
+      long left = Math.max(0, messages - migrated.messages);
+      if (allCheckpointed)
+        left = Math.min(left, sinceCheckpoint);
+      long bytesLeft;
+      if (haveSize && !allCheckpointed) {
+        bytesLeft = Math.max(0, size - migrated.bytes);
+      } else {
+        long avg = migrated.messages > 0
+          ? migrated.bytes / migrated.messages : avgSize;
+        bytesLeft = left * avg;
+      }
+
+      String status = done.contains(user) ? "done" : "ok";
+      write(user + "\t" + folders.size() + "\t" + messages + "\t"
+        + migrated.messages + "\t" + left + "\t" + bytesLeft + "\t" + status,
+        left, bytesLeft, false);
+    } catch (Throwable t) {
+      if (store != null)
+        Utils.closeQuietly(store);
+      write(user + "\t\t\t\t\t\terror: " + t.getClass().getName() + ": "
+        + t.getMessage(), 0, 0, true);
+    }
+  }
+
+  private synchronized void write(String line, long left, long bytesLeft,
+    boolean error)
+  {
+    out.println(line);
+    totalMessages += left;
+    totalBytes += bytesLeft;
+    if (error)
+      failed++;
+  }
+
+  /**
+   * One LIST of the whole tree, then one STATUS per folder that imapsync
+   * would copy.
+   */
+  private List<FolderStatus> getFolderStatus(IMAPStore store)
+    throws MessagingException
+  {
+    IMAPFolder root = (IMAPFolder) store.getDefaultFolder();
+    final boolean withSize = store.hasCapability("STATUS=SIZE");
+    final String items = "(MESSAGES UIDNEXT UIDVALIDITY"
+      + (withSize ? " SIZE)" : ")");
+
+    @SuppressWarnings("unchecked")
+    List<FolderStatus> r = (List<FolderStatus>) root.doCommand(
+      new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException
+      {
+        List<FolderStatus> folders = new ArrayList<FolderStatus>();
+        ListInfo[] li = p.list("", "*");
+        if (li == null)
+          return folders;
+        for (ListInfo l : li) {
+          if (!l.canOpen || !isMigrated(l.name, l.separator))
+            continue;
+          folders.add(status(p, l.name, items));
+        }
+        return folders;
+      }
+    });
+    return r;
+  }
+
+  /**
+   * Whether imapsync copies this folder at all, which it doesn't for anything
+   * under a folder IMAPUtils.mapFolderName() drops.
+   */
+  private static boolean isMigrated(String name, char sep)
+  {
+    if (name.length() < 1)
+      return false;
+    String[] parts = sep == '\0' ? new String[] { name }
+      : name.split(Pattern.quote(String.valueOf(sep)));
+    for (String part : parts) {
+      if (IMAPUtils.mapFolderName(part, sep) == null)
+        return false;
+    }
+    return true;
+  }
+
+  private static FolderStatus status(IMAPProtocol p, String name, String items)
+    throws ProtocolException
+  {
+    Argument args = new Argument();
+    args.writeString(BASE64MailboxEncoder.encode(name));
+    args.writeAtom(items);
+    Response[] r = p.command("STATUS", args);
+
+    FolderStatus fs = new FolderStatus();
+    fs.name = name;
+    for (int i = 0; i < r.length - 1; i++) {
+      if (!(r[i] instanceof IMAPResponse)
+          || !((IMAPResponse) r[i]).keyEquals("STATUS"))
+        continue;
+      IMAPResponse ir = (IMAPResponse) r[i];
+      ir.readAtomString(); // mailbox
+      ir.skipSpaces();
+      if (ir.readByte() != '(')
+        continue;
+      do {
+        String item = ir.readAtom();
+        long v = ir.readLong();
+        if (item.equalsIgnoreCase("MESSAGES"))
+          fs.messages = v;
+        else if (item.equalsIgnoreCase("UIDNEXT"))
+          fs.uidNext = v;
+        else if (item.equalsIgnoreCase("UIDVALIDITY"))
+          fs.uidValidity = v;
+        else if (item.equalsIgnoreCase("SIZE"))
+          fs.size = v;
+      } while (ir.readByte() != ')');
+      r[i] = null;
+    }
+    p.notifyResponseHandlers(r);
+    p.handleResult(r[r.length - 1]);
+    return fs;
+  }
+}
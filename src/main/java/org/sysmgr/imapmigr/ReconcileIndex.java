@@ -0,0 +1,114 @@
+package org.sysmgr.imapmigr;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.ENVELOPE;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+import com.sun.mail.imap.protocol.RFC822SIZE;
+import java.util.Date;
+import javax.mail.MessagingException;
+
+/**
+ * What an open destination folder already holds, by Message-ID, size and
+ * INTERNALDATE, for recognising mail that got there without the MTS knowing:
+ * copied by another tool, or before the MTS was reset.  Each message is kept
+ * as the MD5 of those three in a FingerprintSet, so an index costs at most 32
+ * bytes a message however long the Message-IDs are.
+ *
+ * Messages without a Message-ID are left out; the source side of such a
+ * message is never matched and gets copied as usual.
+ */
+public class ReconcileIndex
+{
+  /**
+   * Destination messages FETCHed per command, so that no more than this many
+   * responses are held at once.
+   */
+  private static final int BATCH = 5000;
+
+  private FingerprintSet keys;
+
+  private ReconcileIndex(int expected)
+  {
+    keys = new FingerprintSet(expected);
+  }
+
+  /**
+   * FETCH the ENVELOPE, RFC822.SIZE and INTERNALDATE of every message in the
+   * folder, BATCH messages a command.
+   */
+  public static ReconcileIndex build(IMAPFolder dstf) throws MessagingException
+  {
+    final int count = dstf.getMessageCount();
+    final ReconcileIndex index = new ReconcileIndex(count);
+    if (count < 1)
+      return index;
+    final Fingerprinter f = Fingerprinter.get();
+    dstf.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException
+      {
+        for (int start = 1; start <= count; start += BATCH) {
+          Response[] r = p.fetch(start, Math.min(count, start + BATCH - 1),
+            "ENVELOPE INTERNALDATE RFC822.SIZE");
+          for (int i = 0; i < r.length - 1; i++) {
+            if (!(r[i] instanceof FetchResponse))
+              continue;
+            FetchResponse fr = (FetchResponse) r[i];
+            ENVELOPE env = (ENVELOPE) fr.getItem(ENVELOPE.class);
+            INTERNALDATE id = (INTERNALDATE) fr.getItem(INTERNALDATE.class);
+            RFC822SIZE sz = (RFC822SIZE) fr.getItem(RFC822SIZE.class);
+            if (env != null && id != null && sz != null) {
+              byte[] key = key(f, env.messageId, sz.size, id.getDate());
+              if (key != null)
+                index.keys.add(key);
+            }
+            r[i] = null;
+          }
+          p.notifyResponseHandlers(r);
+          p.handleResult(r[r.length - 1]);
+        }
+        return null;
+      }
+    });
+    return index;
+  }
+
+  public int size()
+  {
+    return keys.size();
+  }
+
+  /**
+   * Whether the folder holds a copy of this source message.  Uses the
+   * message's prefetched envelope, size and internal date.
+   */
+  public boolean contains(IMAPMessage m) throws MessagingException
+  {
+    byte[] key = key(Fingerprinter.get(), m.getMessageID(), m.getSize(),
+      m.getReceivedDate());
+    return key != null && keys.contains(key);
+  }
+
+  /**
+   * MD5 of "messageid|size|internaldate", with the Message-ID normalised the
+   * way fingerprints do it.
+   *
+   * @return The digest, in the Fingerprinter's reused buffer, or null if
+   *   there is no Message-ID or date.
+   */
+  private static byte[] key(Fingerprinter f, String messageId, long size,
+    Date internalDate)
+  {
+    if (messageId == null || internalDate == null)
+      return null;
+    f.reset();
+    f.appendTrimLower(messageId);
+    f.append('|').append(size);
+    f.append('|').append(internalDate.getTime());
+    return f.digest();
+  }
+}
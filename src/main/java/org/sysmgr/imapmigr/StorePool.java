@@ -0,0 +1,274 @@
+package org.sysmgr.imapmigr;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+/**
+ * Admin-authenticated IMAP connections to one server, used to PROXYAUTH to
+ * the accounts being migrated.  Every store on a server shares one Session,
+ * and a store given back with release() is kept idle for a while so that the
+ * next account can just PROXYAUTH again instead of connecting, negotiating
+ * TLS and logging in from scratch.  Only servers that accept PROXYAUTH more
+ * than once per connection can do that; if the server refuses, the store is
+ * dropped and a fresh one connected.
+ *
+ * JavaMail only knows the proxy user as a Session property, read when the
+ * store is created, so it is switched by setting the store's field directly.
+ * Where that is not possible every account gets its own Session, as before.
+ */
+public class StorePool
+{
+  private static final Map<Properties, Session> sessions
+    = new HashMap<Properties, Session>();
+  private static final Map<String, StorePool> pools
+    = new HashMap<String, StorePool>();
+  private static final Field proxyAuthUser = findProxyField();
+
+  private static int maxIdle = 8;
+  private static long idleTimeout = 60000;
+  private static long checkAfter = 5000;
+
+  /**
+   * @param maxIdle Idle stores kept per server.
+   * @param idleTimeout Milliseconds after which an idle store is closed.
+   * @param checkAfter Milliseconds after which an idle store is sent a NOOP
+   *   before being handed out again.
+   */
+  public static synchronized void setLimits(int maxIdle, long idleTimeout,
+    long checkAfter)
+  {
+    StorePool.maxIdle = maxIdle;
+    StorePool.idleTimeout = idleTimeout;
+    StorePool.checkAfter = checkAfter;
+  }
+
+  /**
+   * One Session per distinct set of properties, instead of one per
+   * connection.
+   */
+  public static Session getSession(Properties p)
+  {
+    synchronized (sessions) {
+      Session s = sessions.get(p);
+      if (s == null) {
+        Properties copy = new Properties();
+        copy.putAll(p);
+        s = Session.getInstance(copy);
+        sessions.put(copy, s);
+      }
+      return s;
+    }
+  }
+
+  public static synchronized StorePool get(String type, String hostname,
+    int port, String username, String password, Properties props)
+  {
+    String key = type + "://" + username + "@" + hostname + ":" + port;
+    StorePool sp = pools.get(key);
+    if (sp == null) {
+      sp = new StorePool(type, hostname, port, username, password, props);
+      pools.put(key, sp);
+    }
+    return sp;
+  }
+
+  /**
+   * Close every idle store on every server.
+   */
+  public static void closeAll()
+  {
+    List<StorePool> all;
+    synchronized (StorePool.class) {
+      all = new ArrayList<StorePool>(pools.values());
+    }
+    for (StorePool sp : all)
+      sp.close();
+  }
+
+  private static class Idle
+  {
+    IMAPStore store;
+    long since;
+
+    Idle(IMAPStore store, long since)
+    {
+      this.store = store;
+      this.since = since;
+    }
+  }
+
+  private String type;
+  private String hostname;
+  private int port;
+  private String username;
+  private String password;
+  private Properties props;
+  private Session session;
+  private final LinkedList<Idle> idle = new LinkedList<Idle>();
+
+  private StorePool(String type, String hostname, int port, String username,
+    String password, Properties props)
+  {
+    this.type = type;
+    this.hostname = hostname;
+    this.port = port;
+    this.username = username;
+    this.password = password;
+    this.props = new Properties();
+    this.props.putAll(props);
+    // Keep no more than the one connection PROXYAUTH gets reissued on; any
+    //   extra ones a store opened for folders are logged out when released.
+    this.props.setProperty("mail." + type + ".connectionpoolsize", "1");
+    this.session = getSession(this.props);
+  }
+
+  /**
+   * @param user Account to PROXYAUTH to.
+   * @param reuse Try an idle store before connecting a new one.
+   */
+  public IMAPStore acquire(String user, boolean reuse)
+    throws MessagingException
+  {
+    if (proxyAuthUser == null) {
+      Properties p = new Properties();
+      p.putAll(props);
+      p.setProperty("mail." + type + ".proxyauth.user", user);
+      IMAPStore imap = (IMAPStore) Session.getInstance(p).getStore(type);
+      imap.connect(hostname, port, username, password);
+      return imap;
+    }
+
+    if (reuse) {
+      Idle i;
+      while ((i = takeIdle()) != null) {
+        try {
+          switchUser(i.store, user,
+            System.currentTimeMillis() - i.since > checkAfter);
+          return i.store;
+        } catch (MessagingException ex) {
+          // dead, or the server won't PROXYAUTH twice
+          Utils.closeQuietly(i.store);
+        }
+      }
+    }
+
+    IMAPStore imap = (IMAPStore) session.getStore(type);
+    setProxyUser(imap, user);
+    imap.connect(hostname, port, username, password);
+    return imap;
+  }
+
+  /**
+   * Keep a store for another account.  Its folders should all be closed.
+   */
+  public void release(IMAPStore store)
+  {
+    if (proxyAuthUser == null || !store.isConnected()) {
+      Utils.closeQuietly(store);
+      return;
+    }
+    List<IMAPStore> expired = new ArrayList<IMAPStore>();
+    synchronized (idle) {
+      expire(expired);
+      if (idle.size() < maxIdle)
+        idle.addLast(new Idle(store, System.currentTimeMillis()));
+      else
+        expired.add(store);
+    }
+    for (IMAPStore s : expired)
+      Utils.closeQuietly(s);
+  }
+
+  private void close()
+  {
+    List<IMAPStore> all = new ArrayList<IMAPStore>();
+    synchronized (idle) {
+      for (Idle i : idle)
+        all.add(i.store);
+      idle.clear();
+    }
+    for (IMAPStore s : all)
+      Utils.closeQuietly(s);
+  }
+
+  private Idle takeIdle()
+  {
+    List<IMAPStore> expired = new ArrayList<IMAPStore>();
+    Idle i = null;
+    synchronized (idle) {
+      expire(expired);
+      // most recently used first; it is the least likely to have timed out
+      if (!idle.isEmpty())
+        i = idle.removeLast();
+    }
+    for (IMAPStore s : expired)
+      Utils.closeQuietly(s);
+    return i;
+  }
+
+  private void expire(List<IMAPStore> expired)
+  {
+    long cutoff = System.currentTimeMillis() - idleTimeout;
+    Iterator<Idle> it = idle.iterator();
+    while (it.hasNext()) {
+      Idle i = it.next();
+      if (i.since < cutoff) {
+        expired.add(i.store);
+        it.remove();
+      }
+    }
+  }
+
+  private void switchUser(IMAPStore store, final String user,
+    final boolean check) throws MessagingException
+  {
+    // Should the store have to log in again to run this, it must do so as
+    //   the admin alone; the new user comes from the PROXYAUTH below.
+    setProxyUser(store, null);
+    IMAPFolder root = (IMAPFolder) store.getDefaultFolder();
+    root.doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol p) throws ProtocolException
+      {
+        if (check)
+          p.noop();
+        p.proxyauth(user);
+        return null;
+      }
+    });
+    // and any further connections it opens follow suit
+    setProxyUser(store, user);
+  }
+
+  private static void setProxyUser(IMAPStore store, String user)
+    throws MessagingException
+  {
+    try {
+      proxyAuthUser.set(store, user);
+    } catch (IllegalAccessException ex) {
+      throw new MessagingException("Could not set PROXYAUTH user.", ex);
+    }
+  }
+
+  private static Field findProxyField()
+  {
+    try {
+      Field f = IMAPStore.class.getDeclaredField("proxyAuthUser");
+      f.setAccessible(true);
+      return f;
+    } catch (Exception ex) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package org.sysmgr.imapmigr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages and bytes moved, to or from one server or overall.  Rates are
+ * averages since the counter was created.
+ */
+public class TransferCounter implements TransferCounterMBean
+{
+  private final String name;
+  private final long start = System.currentTimeMillis();
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+
+  public TransferCounter(String name)
+  {
+    this.name = name;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public void add(long size)
+  {
+    messages.incrementAndGet();
+    bytes.addAndGet(size);
+  }
+
+  public long getMessages()
+  {
+    return messages.get();
+  }
+
+  public long getBytes()
+  {
+    return bytes.get();
+  }
+
+  public double getMessagesPerSecond()
+  {
+    return messages.get() / elapsed();
+  }
+
+  public double getBytesPerSecond()
+  {
+    return bytes.get() / elapsed();
+  }
+
+  private double elapsed()
+  {
+    return Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+  }
+}
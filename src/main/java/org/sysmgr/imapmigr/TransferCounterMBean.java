@@ -0,0 +1,12 @@
+package org.sysmgr.imapmigr;
+
+/**
+ * JMX view of a TransferCounter.
+ */
+public interface TransferCounterMBean
+{
+  long getMessages();
+  long getBytes();
+  double getMessagesPerSecond();
+  double getBytesPerSecond();
+}
@@ -0,0 +1,81 @@
+package org.sysmgr.imapmigr;
+
+import java.util.Arrays;
+
+/**
+ * Where copies of a source folder's messages are in the destination folder,
+ * by UID under the two folders' UIDVALIDITYs.  IMAP UIDs are 32-bit, so each
+ * pair is kept as one long, source UID in the high half, in an array sorted
+ * on first lookup: 8 bytes a message and no per-entry object.
+ *
+ * Not thread-safe.
+ */
+public class UidMap
+{
+  public long srcUidValidity;
+  public long dstUidValidity;
+
+  private long[] pairs = new long[16];
+  private int size = 0;
+  private boolean sorted = true;
+
+  public UidMap(long srcUidValidity, long dstUidValidity)
+  {
+    this.srcUidValidity = srcUidValidity;
+    this.dstUidValidity = dstUidValidity;
+  }
+
+  public void put(long srcUid, long dstUid)
+  {
+    if (size == pairs.length) {
+      long[] np = new long[size * 2];
+      System.arraycopy(pairs, 0, np, 0, size);
+      pairs = np;
+    }
+    long p = (srcUid << 32) | (dstUid & 0xffffffffL);
+    if (size > 0 && p < pairs[size - 1])
+      sorted = false;
+    pairs[size++] = p;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return The destination UID, or -1 if the message isn't mapped.  If it
+   *   was copied more than once, the latest (highest) copy.
+   */
+  public long get(long srcUid)
+  {
+    sort();
+    // first pair past every one with this source UID
+    int i = Arrays.binarySearch(pairs, 0, size, ((srcUid + 1) << 32) - 1);
+    if (i < 0)
+      i = -i - 1;
+    else
+      i++;
+    if (i == 0 || (pairs[i - 1] >>> 32) != srcUid)
+      return -1;
+    return pairs[i - 1] & 0xffffffffL;
+  }
+
+  public long getSrcUid(int i)
+  {
+    return pairs[i] >>> 32;
+  }
+
+  public long getDstUid(int i)
+  {
+    return pairs[i] & 0xffffffffL;
+  }
+
+  private void sort()
+  {
+    if (sorted)
+      return;
+    Arrays.sort(pairs, 0, size);
+    sorted = true;
+  }
+}
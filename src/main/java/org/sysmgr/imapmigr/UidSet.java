@@ -0,0 +1,341 @@
+package org.sysmgr.imapmigr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of UIDs kept as sorted ranges, the way IMAP writes them in a
+ * sequence set ("1:400,402,405:9000"), so a folder of half a million mostly
+ * consecutive UIDs costs a few ranges rather than half a million boxed Longs.
+ * Union, difference and intersection are a single merge over both sets'
+ * ranges, and Diff does what SetDiff does without looking at single UIDs.
+ *
+ * UIDs are 32-bit, 1 to 4294967295.  Not thread-safe.
+ */
+public class UidSet
+{
+  public static final long MAX_UID = 0xffffffffL;
+
+  /**
+   * The left-only, right-only and common UIDs of two sets, as SetDiff has
+   * for a pair of Sets.
+   */
+  public static class Diff
+  {
+    private UidSet minus;
+    private UidSet plus;
+    private UidSet common;
+
+    public Diff(UidSet left, UidSet right)
+    {
+      minus = left.difference(right);
+      plus = right.difference(left);
+      common = left.intersection(right);
+    }
+
+    public UidSet getCommonEntries()
+    {
+      return common;
+    }
+
+    public UidSet getLeftOnlyEntries()
+    {
+      return minus;
+    }
+
+    public UidSet getRightOnlyEntries()
+    {
+      return plus;
+    }
+  }
+
+  /*
+   * Range i is ranges[2i] to ranges[2i+1] inclusive.  Ranges are in order
+   * and neither overlap nor touch.
+   */
+  private long[] ranges;
+  private int count = 0;
+  private long size = 0;
+
+  public UidSet()
+  {
+    this(4);
+  }
+
+  private UidSet(int rangeCapacity)
+  {
+    ranges = new long[Math.max(2, rangeCapacity * 2)];
+  }
+
+  /**
+   * Parse a sequence set of UIDs, or the UIDs of a SEARCH response: numbers
+   * and lo:hi ranges separated by commas or spaces, in any order.
+   *
+   * @param star What "*" stands for, -1 if it is not allowed.
+   * @throws IllegalArgumentException If it isn't one.
+   */
+  public static UidSet parse(String set, long star)
+  {
+    String[] parts = set.trim().split("[,\\s]+");
+    if (parts.length == 1 && parts[0].length() == 0)
+      return new UidSet();
+    // each range as lo << 32 | hi, so that sorting them sorts by lo; with
+    //   the sign bit flipped, as lo may use all 32 bits
+    long[] packed = new long[parts.length];
+    boolean sorted = true;
+    for (int i = 0; i < parts.length; i++) {
+      int colon = parts[i].indexOf(':');
+      long lo = parseUid(colon < 0 ? parts[i] : parts[i].substring(0, colon),
+        star, set);
+      long hi = colon < 0 ? lo : parseUid(parts[i].substring(colon + 1), star,
+        set);
+      if (lo > hi) {
+        long t = lo;
+        lo = hi;
+        hi = t;
+      }
+      packed[i] = ((lo << 32) | hi) ^ Long.MIN_VALUE;
+      if (i > 0 && packed[i] < packed[i - 1])
+        sorted = false;
+    }
+    if (!sorted)
+      Arrays.sort(packed);
+    UidSet s = new UidSet(packed.length);
+    for (long p : packed) {
+      p ^= Long.MIN_VALUE;
+      s.append(p >>> 32, p & MAX_UID);
+    }
+    return s;
+  }
+
+  public static UidSet parse(String set)
+  {
+    return parse(set, -1);
+  }
+
+  private static long parseUid(String s, long star, String set)
+  {
+    long uid;
+    if (s.equals("*")) {
+      if (star < 0)
+        throw new IllegalArgumentException("Unexpected * in UID set: " + set);
+      uid = star;
+    } else {
+      try {
+        uid = Long.parseLong(s);
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Not a UID set: " + set);
+      }
+    }
+    if (uid < 1 || uid > MAX_UID)
+      throw new IllegalArgumentException("UID out of range in UID set: "
+        + set);
+    return uid;
+  }
+
+  /**
+   * The first n UIDs of the array, which is sorted in place.
+   */
+  public static UidSet of(long[] uids, int n)
+  {
+    Arrays.sort(uids, 0, n);
+    UidSet s = new UidSet();
+    for (int i = 0; i < n; i++)
+      s.append(uids[i], uids[i]);
+    return s;
+  }
+
+  /**
+   * Number of UIDs in the set.
+   */
+  public long size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return count == 0;
+  }
+
+  public int getRangeCount()
+  {
+    return count;
+  }
+
+  public long getLow(int range)
+  {
+    return ranges[range * 2];
+  }
+
+  public long getHigh(int range)
+  {
+    return ranges[range * 2 + 1];
+  }
+
+  public boolean contains(long uid)
+  {
+    // last range starting at or before uid
+    int lo = 0;
+    int hi = count - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ranges[mid * 2] <= uid)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return hi >= 0 && uid <= ranges[hi * 2 + 1];
+  }
+
+  public void add(long uid)
+  {
+    add(uid, uid);
+  }
+
+  /**
+   * Add lo to hi inclusive.  Cheap if nothing in the set comes after lo, as
+   * when UIDs are added in ascending order; otherwise the ranges are merged
+   * afresh.
+   */
+  public void add(long lo, long hi)
+  {
+    if (lo < 1 || hi > MAX_UID || lo > hi)
+      throw new IllegalArgumentException("Bad UID range " + lo + ":" + hi);
+    if (count == 0 || lo >= ranges[count * 2 - 2]) {
+      append(lo, hi);
+      return;
+    }
+    UidSet one = new UidSet(1);
+    one.append(lo, hi);
+    UidSet u = union(one);
+    ranges = u.ranges;
+    count = u.count;
+    size = u.size;
+  }
+
+  /**
+   * Extend the last range, or add one after it.  lo must not be below the
+   * last range's low end.
+   */
+  private void append(long lo, long hi)
+  {
+    if (count > 0) {
+      long last = ranges[count * 2 - 1];
+      if (lo <= last + 1) {
+        if (hi > last) {
+          ranges[count * 2 - 1] = hi;
+          size += hi - last;
+        }
+        return;
+      }
+    }
+    if (count * 2 == ranges.length) {
+      long[] nr = new long[ranges.length * 2];
+      System.arraycopy(ranges, 0, nr, 0, ranges.length);
+      ranges = nr;
+    }
+    ranges[count * 2] = lo;
+    ranges[count * 2 + 1] = hi;
+    count++;
+    size += hi - lo + 1;
+  }
+
+  public UidSet union(UidSet other)
+  {
+    UidSet r = new UidSet(count + other.count);
+    int i = 0;
+    int j = 0;
+    while (i < count || j < other.count) {
+      if (j == other.count
+          || (i < count && ranges[i * 2] <= other.ranges[j * 2])) {
+        r.append(ranges[i * 2], ranges[i * 2 + 1]);
+        i++;
+      } else {
+        r.append(other.ranges[j * 2], other.ranges[j * 2 + 1]);
+        j++;
+      }
+    }
+    return r;
+  }
+
+  public UidSet intersection(UidSet other)
+  {
+    UidSet r = new UidSet(Math.min(count, other.count));
+    int i = 0;
+    int j = 0;
+    while (i < count && j < other.count) {
+      long lo = Math.max(ranges[i * 2], other.ranges[j * 2]);
+      long hi = Math.min(ranges[i * 2 + 1], other.ranges[j * 2 + 1]);
+      if (lo <= hi)
+        r.append(lo, hi);
+      if (ranges[i * 2 + 1] < other.ranges[j * 2 + 1])
+        i++;
+      else
+        j++;
+    }
+    return r;
+  }
+
+  /**
+   * The UIDs in this set but not the other.
+   */
+  public UidSet difference(UidSet other)
+  {
+    UidSet r = new UidSet(count);
+    int j = 0;
+    for (int i = 0; i < count; i++) {
+      long from = ranges[i * 2];
+      long to = ranges[i * 2 + 1];
+      while (j < other.count && other.ranges[j * 2 + 1] < from)
+        j++;
+      // cut out each of the other's ranges that overlaps this one; the
+      //   last may overlap the next one too, so is not passed over
+      while (j < other.count && other.ranges[j * 2] <= to) {
+        if (other.ranges[j * 2] > from)
+          r.append(from, other.ranges[j * 2] - 1);
+        from = other.ranges[j * 2 + 1] + 1;
+        if (other.ranges[j * 2 + 1] > to)
+          break;
+        j++;
+      }
+      if (from <= to)
+        r.append(from, to);
+    }
+    return r;
+  }
+
+  /**
+   * The set in pieces of at most maxRanges ranges, e.g. to keep each
+   * command that names them a sensible length.
+   */
+  public List<UidSet> split(int maxRanges)
+  {
+    List<UidSet> l = new ArrayList<UidSet>();
+    for (int start = 0; start < count; start += maxRanges) {
+      int n = Math.min(maxRanges, count - start);
+      UidSet s = new UidSet(n);
+      for (int i = start; i < start + n; i++)
+        s.append(ranges[i * 2], ranges[i * 2 + 1]);
+      l.add(s);
+    }
+    return l;
+  }
+
+  /**
+   * As an IMAP sequence set; "" if empty, which IMAP has no way to write.
+   */
+  public String toString()
+  {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < count; i++) {
+      if (i > 0)
+        sb.append(',');
+      sb.append(ranges[i * 2]);
+      if (ranges[i * 2 + 1] != ranges[i * 2])
+        sb.append(':').append(ranges[i * 2 + 1]);
+    }
+    return sb.toString();
+  }
+}
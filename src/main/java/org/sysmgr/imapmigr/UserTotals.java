@@ -0,0 +1,16 @@
+package org.sysmgr.imapmigr;
+
+/**
+ * Message count and total size, e.g. of the mail migrated for one user.
+ */
+public class UserTotals
+{
+  public long messages;
+  public long bytes;
+
+  public UserTotals(long messages, long bytes)
+  {
+    this.messages = messages;
+    this.bytes = bytes;
+  }
+}
@@ -129,22 +129,16 @@ public class Utils
     }
   }
 
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
   public static String convertToHex(byte[] data)
   {
-    StringBuffer buf = new StringBuffer();
+    char[] buf = new char[data.length * 2];
     for (int i = 0; i < data.length; i++) {
-      int halfbyte = (data[i] >>> 4) & 0x0F;
-      int two_halfs = 0;
-      do {
-        if ((0 <= halfbyte) && (halfbyte <= 9)) {
-          buf.append((char) ('0' + halfbyte));
-        } else {
-          buf.append((char) ('a' + (halfbyte - 10)));
-        }
-        halfbyte = data[i] & 0x0F;
-      } while (two_halfs++ < 1);
+      buf[i * 2] = HEX[(data[i] >>> 4) & 0x0F];
+      buf[i * 2 + 1] = HEX[data[i] & 0x0F];
     }
-    return buf.toString();
+    return new String(buf);
   }
 
   public static String getGZIPHash(File f)
@@ -194,14 +188,6 @@ public class Utils
 
   public static String getMD5(String input)
   {
-    MessageDigest md5;
-    try {
-      md5 = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException ex) {
-      throw new RuntimeException("Could not use MD5 hash function.", ex);
-    }
-    md5.reset();
-    md5.update(input.getBytes());
-    return convertToHex(md5.digest()).toLowerCase();
+    return convertToHex(Fingerprinter.get().reset().append(input).digest());
   }
 }
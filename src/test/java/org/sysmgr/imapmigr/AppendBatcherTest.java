@@ -0,0 +1,66 @@
+package org.sysmgr.imapmigr;
+
+import com.sun.mail.iap.Response;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class AppendBatcherTest extends TestCase
+{
+  private static List<AppendBatcher.Pending> batch(int n)
+  {
+    List<AppendBatcher.Pending> b = new ArrayList<AppendBatcher.Pending>();
+    for (int i = 0; i < n; i++)
+      b.add(new AppendBatcher.Pending(null, "fp" + i, 100, null));
+    return b;
+  }
+
+  private static long[] dstUids(String ok, int n)
+  {
+    List<AppendBatcher.Pending> b = batch(n);
+    AppendBatcher.noteAppendUid(new Response(ok), b);
+    long[] uids = new long[n];
+    for (int i = 0; i < n; i++)
+      uids[i] = b.get(i).dstUid;
+    return uids;
+  }
+
+  private static void assertUids(long[] want, long[] got)
+  {
+    assertEquals(want.length, got.length);
+    for (int i = 0; i < want.length; i++)
+      assertEquals("message " + i, want[i], got[i]);
+  }
+
+  public void testAppendUid()
+  {
+    List<AppendBatcher.Pending> b = batch(4);
+    AppendBatcher.noteAppendUid(new Response(
+      "A1 OK [APPENDUID 38505 3955:3956,3960,3000000000] APPEND completed"),
+      b);
+    assertEquals(38505, b.get(0).dstUidValidity);
+    assertUids(new long[] { 3955, 3956, 3960, 3000000000L },
+      dstUids("A1 OK [APPENDUID 38505 3955:3956,3960,3000000000] Done", 4));
+    assertUids(new long[] { 7 }, dstUids("A1 OK [APPENDUID 1 7] Done", 1));
+  }
+
+  /**
+   * A set that doesn't ascend can't be matched to the messages safely.
+   */
+  public void testUnorderedAppendUidIgnored()
+  {
+    assertUids(new long[] { -1, -1, -1 },
+      dstUids("A1 OK [APPENDUID 1 9,3:4] Done", 3));
+    assertUids(new long[] { -1, -1 },
+      dstUids("A1 OK [APPENDUID 1 5:4] Done", 2));
+  }
+
+  public void testAppendUidWrongCount()
+  {
+    assertUids(new long[] { -1, -1, -1 },
+      dstUids("A1 OK [APPENDUID 1 3:4] Done", 3));
+    assertUids(new long[] { -1, -1 },
+      dstUids("A1 OK [APPENDUID 1 3:5] Done", 2));
+    assertUids(new long[] { -1 }, dstUids("A1 OK APPEND completed", 1));
+  }
+}
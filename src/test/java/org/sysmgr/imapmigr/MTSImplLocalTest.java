@@ -0,0 +1,111 @@
+package org.sysmgr.imapmigr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import junit.framework.TestCase;
+
+public class MTSImplLocalTest extends TestCase
+{
+  private static final String USER = "user0";
+  private static final String FP1 = "00000000000000000000000000000001";
+  private static final String FP2 = "00000000000000000000000000000002";
+  private static final String FP3 = "00000000000000000000000000000003";
+
+  private File dir;
+
+  protected void setUp() throws IOException
+  {
+    dir = File.createTempFile("mtslocal", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  protected void tearDown()
+  {
+    for (File f : dir.listFiles())
+      f.delete();
+    dir.delete();
+  }
+
+  private MTSImplLocal open()
+  {
+    return new MTSImplLocal(dir, 65536, 60000, 0, 50);
+  }
+
+  private static void checkpoint(MTSImplLocal mts, long highUid)
+  {
+    mts.saveCheckpoint(USER, "INBOX", new FolderCheckpoint(1, highUid, 0));
+  }
+
+  /**
+   * Zero the length of the nth record of the first segment, as if a crash
+   * had kept that page from the disk but not the ones after it.
+   */
+  private void loseLength(int n) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(new File(dir,
+      "seg-000001.log"), "rw");
+    try {
+      long pos = 8;
+      for (int i = 0; i < n; i++) {
+        raf.seek(pos);
+        pos += 8 + raf.readInt();
+      }
+      raf.seek(pos);
+      raf.writeInt(0);
+    } finally {
+      raf.close();
+    }
+  }
+
+  public void testReopen()
+  {
+    MTSImplLocal mts = open();
+    mts.recordMigration(USER, FP1, 100, null);
+    checkpoint(mts, 10);
+    mts.markUserDone(USER);
+    mts.close();
+
+    mts = open();
+    assertTrue(mts.isMigrated(USER, FP1));
+    assertEquals(10, mts.getCheckpoint(USER, "INBOX").highUid);
+    assertTrue(mts.isUserDone(USER));
+    mts.close();
+  }
+
+  /**
+   * Records that made it to disk past a lost one are dropped, and stay
+   * dropped once new records are written over the start of them.
+   */
+  public void testRecordsAfterLostLength() throws IOException
+  {
+    MTSImplLocal mts = open();
+    mts.recordMigration(USER, FP1, 100, null);
+    checkpoint(mts, 10);
+    mts.recordMigration(USER, FP2, 100, null);
+    checkpoint(mts, 20);
+    mts.close();
+    loseLength(2);
+
+    mts = open();
+    assertTrue(mts.isMigrated(USER, FP1));
+    assertFalse(mts.isMigrated(USER, FP2));
+    assertEquals(10, mts.getCheckpoint(USER, "INBOX").highUid);
+    // exactly where the lost one was, so the old checkpoint would follow
+    mts.recordMigration(USER, FP3, 100, null);
+    mts.close();
+
+    mts = open();
+    assertTrue(mts.isMigrated(USER, FP3));
+    assertFalse(mts.isMigrated(USER, FP2));
+    assertEquals(10, mts.getCheckpoint(USER, "INBOX").highUid);
+    checkpoint(mts, 30);
+    mts.close();
+
+    mts = open();
+    assertEquals(30, mts.getCheckpoint(USER, "INBOX").highUid);
+    assertEquals(2, mts.getMigratedTotals(USER).messages);
+    mts.close();
+  }
+}
@@ -0,0 +1,80 @@
+package org.sysmgr.imapmigr;
+
+import junit.framework.TestCase;
+
+public class UidSetTest extends TestCase
+{
+  public void testParse()
+  {
+    assertEquals("1:5,9:12", UidSet.parse("5 3 1:2 9:* 4", 12).toString());
+    assertEquals("3:7", UidSet.parse("7:3").toString());
+    assertEquals("", UidSet.parse(" ").toString());
+    assertEquals(8, UidSet.parse("1:5,9:11").size());
+  }
+
+  public void testParseRejects()
+  {
+    String[] bad = { "1:*", "0", "4294967296", "1,x" };
+    for (String s : bad) {
+      try {
+        UidSet.parse(s);
+        fail("Parsed " + s);
+      } catch (IllegalArgumentException ex) {
+      }
+    }
+  }
+
+  /**
+   * UIDs of 2^31 and up must still sort after smaller ones.
+   */
+  public void testParseHighUids()
+  {
+    assertEquals("5,3000000000", UidSet.parse("5,3000000000").toString());
+    assertEquals("5,3000000000:3000000001",
+      UidSet.parse("3000000000,3000000001,5").toString());
+    assertEquals("2147483647:2147483648,4294967295",
+      UidSet.parse("4294967295 2147483648 2147483647").toString());
+    UidSet s = UidSet.parse("1:3,2147483648:*", UidSet.MAX_UID);
+    assertEquals(2, s.getRangeCount());
+    assertTrue(s.contains(3));
+    assertFalse(s.contains(2147483647L));
+    assertTrue(s.contains(UidSet.MAX_UID));
+  }
+
+  public void testAddOutOfOrder()
+  {
+    UidSet s = new UidSet();
+    s.add(10);
+    s.add(12);
+    s.add(11);
+    s.add(3000000000L);
+    s.add(1, 2);
+    assertEquals("1:2,10:12,3000000000", s.toString());
+    assertEquals(6, s.size());
+  }
+
+  public void testSetOperations()
+  {
+    UidSet a = UidSet.parse("1:10,20:30,3000000000:3000000005");
+    UidSet b = UidSet.parse("5:25,3000000003");
+    assertEquals("1:30,3000000000:3000000005", a.union(b).toString());
+    assertEquals("5:10,20:25,3000000003", a.intersection(b).toString());
+    assertEquals("1:4,26:30,3000000000:3000000002,3000000004:3000000005",
+      a.difference(b).toString());
+    assertEquals("11:19", b.difference(a).toString());
+
+    UidSet.Diff d = new UidSet.Diff(a, b);
+    assertEquals(a.difference(b).toString(),
+      d.getLeftOnlyEntries().toString());
+    assertEquals("11:19", d.getRightOnlyEntries().toString());
+    assertEquals(a.intersection(b).toString(),
+      d.getCommonEntries().toString());
+  }
+
+  public void testSplit()
+  {
+    UidSet s = UidSet.parse("1,3,5,7,9");
+    assertEquals(3, s.split(2).size());
+    assertEquals("9", s.split(2).get(2).toString());
+  }
+}